@@ -0,0 +1,222 @@
+/*
+ * AnalysisBenchmarks.java
+ *
+ * Benchmarks of the stages of the analysis, run with BenchmarkHarness:
+ *   - FFT.fft and FFT.magnitudePhaseFFT at 512 to 8192 points
+ *   - AudioFile.processFile on synthetic WAV files of 10, 60 and 300 s
+ *   - each registered onset detection function over a spectrogram
+ *   - SemitoneFilter.apply, the peak picking and TempoHypothesis.process
+ *   - the evaluation of onsets (EventEvaluation, as used by Runner)
+ *
+ * Usage: AnalysisBenchmarks [-w WARMUPS] [-m MEASUREMENTS] [-t MILLIS] [REGEX]
+ * runs the benchmarks whose name matches REGEX (all by default). The synthetic
+ * audio is written to a temporary directory which is deleted afterwards.
+ */
+package at.cp.jku.teaching.amprocessing;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import joptsimple.OptionParser;
+import joptsimple.OptionSet;
+
+public class AnalysisBenchmarks {
+
+    private static final float SAMPLE_RATE = 44100;
+    // the parameters of Processor
+    private static final double FFT_TIME = 0.046439;
+    private static final double HOP_TIME = 0.01;
+
+    public static void main(String[] args) throws Exception {
+        OptionParser parser = new OptionParser("w:m:t:");
+        OptionSet options = parser.parse(args);
+        int warmups = options.has("w") ? Integer.parseInt(options.valueOf("w").toString()) : 3;
+        int measurements = options.has("m") ? Integer.parseInt(options.valueOf("m").toString()) : 5;
+        long millis = options.has("t") ? Long.parseLong(options.valueOf("t").toString()) : 1000;
+        Pattern filter = Pattern.compile(options.nonOptionArguments().isEmpty() ? ""
+                : options.nonOptionArguments().get(0).toString());
+
+        File directory = Files.createTempDirectory("benchmarks").toFile();
+        try {
+            BenchmarkHarness harness = new BenchmarkHarness(warmups, measurements, millis);
+            addBenchmarks(harness, directory);
+            harness.run(filter, System.out);
+        } finally {
+            File[] files = directory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            directory.delete();
+        }
+    }
+
+    static void addBenchmarks(BenchmarkHarness harness, File directory) {
+        for (int size = 512; size <= 8192; size *= 2) {
+            int n = size;
+            harness.add("FFT.fft", "size=" + n, () -> {
+                double[] re = noise(n, 1), im = noise(n, 2);
+                double[] workRe = new double[n], workIm = new double[n];
+                return () -> {
+                    System.arraycopy(re, 0, workRe, 0, n);
+                    System.arraycopy(im, 0, workIm, 0, n);
+                    FFT.fft(workRe, workIm, FFT.FORWARD);
+                    return workRe;
+                };
+            });
+        }
+        for (int size = 512; size <= 8192; size *= 2) {
+            int n = size;
+            harness.add("FFT.magnitudePhaseFFT", "size=" + n, () -> {
+                double[] re = noise(n, 1);
+                double[] workRe = new double[n], workIm = new double[n];
+                return () -> {
+                    System.arraycopy(re, 0, workRe, 0, n);
+                    Arrays.fill(workIm, 0);
+                    FFT.magnitudePhaseFFT(workRe, workIm);
+                    return workRe;
+                };
+            });
+        }
+
+        for (int seconds : new int[] { 10, 60, 300 }) {
+            harness.add("AudioFile.processFile", "length=" + seconds + "s", () -> {
+                File wav = synthesize(directory, seconds);
+                return () -> {
+                    AudioFile audiofile = new AudioFile(wav.getPath(), FFT_TIME, HOP_TIME,
+                            OnsetProcessor.requiredFeatures());
+                    audiofile.processFile();
+                    return audiofile.spectrogram;
+                };
+            });
+        }
+
+        for (String name : OnsetDetectionFunctions.names()) {
+            harness.add("OnsetDetectionFunction", name, () -> {
+                OnsetDetectionFunctions.Type type = OnsetDetectionFunctions.get(name);
+                AudioFile audiofile = spectrogram(directory, 60, type.features);
+                Spectrogram spectrogram = audiofile.spectrogram;
+                double[] values = new double[spectrogram.frames()];
+                return () -> {
+                    OnsetDetectionFunction function = type.create(spectrogram.size(), audiofile.getSampleRate());
+                    for (int frame = 0; frame < values.length; frame++) {
+                        values[frame] = function.next(spectrogram.magnitudes(), spectrogram.phases(),
+                                spectrogram.offset(frame));
+                    }
+                    return values;
+                };
+            });
+        }
+
+        harness.add("SemitoneFilter.apply", "length=60s", () -> {
+            AudioFile audiofile = spectrogram(directory, 60, AudioFile.MAGNITUDES);
+            Spectrogram spectrogram = audiofile.spectrogram;
+            OnsetProcessor.SemitoneFilter filter = OnsetProcessor.SemitoneFilter.get(spectrogram.size(),
+                    audiofile.getSampleRate());
+            double[] result = new double[filter.getBinCount()];
+            return () -> {
+                for (int frame = 0; frame < spectrogram.frames(); frame++) {
+                    filter.apply(spectrogram.magnitudes(), spectrogram.offset(frame), result);
+                }
+                return result;
+            };
+        });
+
+        harness.add("peakPicking", "length=300s", () -> {
+            double[] odf = odf(directory, 300);
+            return () -> OnsetProcessor.pickOnsets(odf, OnsetDetectionFunctions.get(OnsetDetectionFunctions.DEFAULT).threshold,
+                    OnsetProcessor.WINDOW_MAX, OnsetProcessor.WINDOW_MEAN, OnsetProcessor.MIN_DELAY);
+        });
+
+        harness.add("TempoHypothesis.process", "length=30s", () -> {
+            OnsetIndex onsets = new OnsetIndex(onsetTimes(30, 3));
+            return () -> {
+                TempoHypothesis hypothesis = new TempoHypothesis(onsets, 500, 0);
+                hypothesis.process();
+                return hypothesis;
+            };
+        });
+
+        harness.add("EventEvaluation.evaluate", "events=3000", () -> {
+            double[] estimates = onsetTimes(1500, 4);
+            double[] groundTruth = EventEvaluation.mergeGroundTruth(onsetTimes(1500, 5), 0.05);
+            return () -> EventEvaluation.evaluate(estimates, groundTruth, 0.05);
+        });
+        harness.add("EventEvaluation.mergeGroundTruth", "events=3000", () -> {
+            double[] groundTruth = onsetTimes(1500, 5);
+            return () -> EventEvaluation.mergeGroundTruth(groundTruth, 0.05);
+        });
+    }
+
+    private static double[] noise(int n, long seed) {
+        Random random = new Random(seed);
+        double[] values = new double[n];
+        for (int i = 0; i < n; i++) {
+            values[i] = random.nextDouble() * 2 - 1;
+        }
+        return values;
+    }
+
+    // onsets at 120 bpm with 10 ms of jitter and some additional ones
+    private static double[] onsetTimes(double seconds, long seed) {
+        Random random = new Random(seed);
+        DoubleArray times = new DoubleArray();
+        for (double beat = 0.1; beat < seconds; beat += 0.5) {
+            times.add(beat + random.nextGaussian() * 0.01);
+            if (random.nextDouble() < 0.3) {
+                times.add(beat + 0.25 + random.nextGaussian() * 0.01);
+            }
+        }
+        double[] sorted = times.toArray();
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    private static AudioFile spectrogram(File directory, int seconds, int features) throws IOException {
+        AudioFile audiofile = new AudioFile(synthesize(directory, seconds).getPath(), FFT_TIME, HOP_TIME, features);
+        audiofile.processFile();
+        return audiofile;
+    }
+
+    private static double[] odf(File directory, int seconds) throws IOException {
+        AudioFile audiofile = spectrogram(directory, seconds, OnsetProcessor.requiredFeatures());
+        Spectrogram spectrogram = audiofile.spectrogram;
+        OnsetDetectionFunction function = OnsetDetectionFunctions.get(OnsetDetectionFunctions.DEFAULT)
+                .create(spectrogram.size(), audiofile.getSampleRate());
+        double[] values = new double[spectrogram.frames()];
+        for (int frame = 0; frame < values.length; frame++) {
+            values[frame] = function.next(spectrogram.magnitudes(), spectrogram.phases(), spectrogram.offset(frame));
+        }
+        return values;
+    }
+
+    // A mono 16 bit WAV file of decaying noise bursts and tones at 120 bpm
+    // over quiet noise (written once per length).
+    static File synthesize(File directory, int seconds) throws IOException {
+        File file = new File(directory, "synthetic" + seconds + ".wav");
+        if (file.isFile()) {
+            return file;
+        }
+        double[] samples = new double[(int) (seconds * SAMPLE_RATE)];
+        Random random = new Random(seconds);
+        int beat = (int) (SAMPLE_RATE / 2);
+        double frequency = 220;
+        for (int i = 0; i < samples.length; i++) {
+            int sinceBeat = i % beat;
+            if (sinceBeat == 0) {
+                frequency = 220 * Math.pow(2, random.nextInt(24) / 12.0);
+            }
+            double envelope = Math.exp(-sinceBeat / (0.05 * SAMPLE_RATE));
+            samples[i] = envelope * (0.4 * (random.nextDouble() * 2 - 1)
+                    + 0.4 * Math.sin(2 * Math.PI * frequency * i / SAMPLE_RATE))
+                    + 0.01 * (random.nextDouble() * 2 - 1);
+        }
+        WavFile.writeMono(file, samples, (int) SAMPLE_RATE);
+        return file;
+    }
+}
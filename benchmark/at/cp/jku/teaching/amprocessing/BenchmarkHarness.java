@@ -0,0 +1,168 @@
+/*
+ * BenchmarkHarness.java
+ *
+ * A small harness for micro benchmarks in the style of JMH: each benchmark
+ * is set up once, run for a number of warmup iterations and then measured
+ * for a number of iterations of fixed duration, in each of which the
+ * operation is repeated as often as possible. Reported are the throughput
+ * (operations per second, mean and standard deviation over the iterations)
+ * and the allocation (bytes per operation and MB per second), the latter
+ * from the allocation counter of the benchmark thread.
+ */
+package at.cp.jku.teaching.amprocessing;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+public class BenchmarkHarness {
+
+    /** The measured operation; its result is consumed, so it cannot be optimized away. */
+    public interface Operation {
+        Object run() throws Exception;
+    }
+
+    /** Prepares the data of a benchmark (not measured) and returns its operation. */
+    public interface Setup {
+        Operation setUp() throws Exception;
+    }
+
+    /** The measurements of one benchmark. */
+    public static class Result {
+        public final String name;
+        public final String parameters;
+        public final double opsPerSecond, opsPerSecondDeviation;
+        // NaN if the JVM does not count the allocated bytes
+        public final double bytesPerOp, allocationRate;
+
+        Result(String name, String parameters, double opsPerSecond, double opsPerSecondDeviation,
+                double bytesPerOp, double allocationRate) {
+            this.name = name;
+            this.parameters = parameters;
+            this.opsPerSecond = opsPerSecond;
+            this.opsPerSecondDeviation = opsPerSecondDeviation;
+            this.bytesPerOp = bytesPerOp;
+            this.allocationRate = allocationRate;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-28s %-16s %14.3f +- %10.3f ops/s %14.1f B/op %10.1f MB/s",
+                    name, parameters, opsPerSecond, opsPerSecondDeviation, bytesPerOp, allocationRate);
+        }
+    }
+
+    private static class Case {
+        final String name, parameters;
+        final Setup setup;
+
+        Case(String name, String parameters, Setup setup) {
+            this.name = name;
+            this.parameters = parameters;
+            this.setup = setup;
+        }
+    }
+
+    private final List<Case> cases = new ArrayList<Case>();
+    private final int warmupIterations, measurementIterations;
+    private final long iterationNanos;
+    // written by every operation so that its result is used
+    private volatile Object sink;
+
+    /**
+     * @param iterationMillis the duration of each iteration
+     */
+    public BenchmarkHarness(int warmupIterations, int measurementIterations, long iterationMillis) {
+        if (warmupIterations < 0 || measurementIterations < 1 || iterationMillis < 1) {
+            throw new IllegalArgumentException("invalid number or duration of iterations");
+        }
+        this.warmupIterations = warmupIterations;
+        this.measurementIterations = measurementIterations;
+        this.iterationNanos = iterationMillis * 1000000;
+    }
+
+    /** Adds a benchmark; parameters describe the variant (e.g. the size). */
+    public void add(String name, String parameters, Setup setup) {
+        cases.add(new Case(name, parameters, setup));
+    }
+
+    /**
+     * Runs the benchmarks whose name (or "name parameters") matches the
+     * filter, in the order they were added, and prints each result.
+     */
+    public List<Result> run(Pattern filter, PrintStream out) throws Exception {
+        List<Result> results = new ArrayList<Result>();
+        for (Case c : cases) {
+            if (!filter.matcher(c.name).find() && !filter.matcher(c.name + " " + c.parameters).find()) {
+                continue;
+            }
+            Result result = measure(c);
+            out.println(result);
+            results.add(result);
+        }
+        return results;
+    }
+
+    private Result measure(Case c) throws Exception {
+        Operation operation = c.setup.setUp();
+        for (int i = 0; i < warmupIterations; i++) {
+            iteration(operation);
+        }
+        double[] opsPerSecond = new double[measurementIterations];
+        long totalOps = 0, totalBytes = 0, totalNanos = 0;
+        boolean allocationCounted = true;
+        for (int i = 0; i < measurementIterations; i++) {
+            long[] iteration = iteration(operation);
+            opsPerSecond[i] = iteration[0] * 1e9 / iteration[1];
+            totalOps += iteration[0];
+            totalNanos += iteration[1];
+            totalBytes += iteration[2];
+            allocationCounted &= iteration[2] >= 0;
+        }
+
+        double mean = 0;
+        for (double value : opsPerSecond) {
+            mean += value;
+        }
+        mean /= opsPerSecond.length;
+        double variance = 0;
+        for (double value : opsPerSecond) {
+            variance += (value - mean) * (value - mean);
+        }
+        double deviation = opsPerSecond.length > 1 ? Math.sqrt(variance / (opsPerSecond.length - 1)) : 0;
+        double bytesPerOp = allocationCounted ? (double) totalBytes / totalOps : Double.NaN;
+        double allocationRate = allocationCounted ? totalBytes / (totalNanos / 1e9) / (1024 * 1024) : Double.NaN;
+        return new Result(c.name, c.parameters, mean, deviation, bytesPerOp, allocationRate);
+    }
+
+    // {operations, nanoseconds, allocated bytes (-1 if not counted)}
+    private long[] iteration(Operation operation) throws Exception {
+        long bytesBefore = allocatedBytes();
+        long start = System.nanoTime();
+        long end;
+        long ops = 0;
+        do {
+            sink = operation.run();
+            ops++;
+            end = System.nanoTime();
+        } while (end - start < iterationNanos);
+        long bytesAfter = allocatedBytes();
+        long bytes = bytesBefore < 0 || bytesAfter < 0 ? -1 : bytesAfter - bytesBefore;
+        return new long[] { ops, end - start, bytes };
+    }
+
+    // the bytes allocated by the current thread so far, -1 if not available
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        if (!threads.isThreadAllocatedMemorySupported() || !threads.isThreadAllocatedMemoryEnabled()) {
+            return -1;
+        }
+        return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
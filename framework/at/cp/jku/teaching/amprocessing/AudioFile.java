@@ -5,8 +5,10 @@
  * After Initialization you have to call the process() method to do the feature extraction
  *
  * The most important variables for you are
- *   - LinkedList<SpectralData> spectralDataContainer (contains the data of the STFT)
- *   - LinkedList<Double> sampleDataContainer (contains the samples in the time domain)
+ *   - Spectrogram spectrogram (contains the data of the STFT, frame n at spectrogram.offset(n)
+ *     of its flat arrays)
+ *   - SampleBuffer sampleDataContainer (contains the samples in the time domain, only
+ *     if enabled via setKeepSamples(true) before processing, otherwise null)
  * also:
  *   - double fftTime (in seconds, contains the size of the window which you set via the constructor)
  *   - double hopTime (in seconds, contains the hoptime (also set via the constructor)
@@ -16,6 +18,27 @@
  *
  * the signal is windowed using a hamming window
  *
+ * plain PCM/float WAV files are read with WavFile (memory mapped), all other
+ * files through javax.sound.sampled.AudioSystem
+ *
+ * Which data is computed per frame is given by the features (MAGNITUDES,
+ * PHASES, UNWRAPPED_PHASES); the phases cost an atan2 per bin and frame, so
+ * they should only be requested if a phase based onset detection function
+ * is used. The unwrapped phases are computed during the STFT.
+ *
+ * processFile(ForkJoinPool) computes the same spectrogram in parallel: the
+ * signal is decoded first and ranges of frames are then transformed
+ * concurrently.
+ *
+ * processFile(SpectrogramCache, ForkJoinPool) takes the spectrogram from a
+ * SpectrogramCache if it holds the one of this file, and stores it there
+ * otherwise.
+ *
+ * Alternatively processFile(FrameListener, int) streams the frames through a
+ * bounded SpectralFrameRing instead of storing them; in this mode the
+ * spectrogram is not filled, so (unless the samples are kept) memory stays
+ * constant for arbitrarily long files.
+ *
  */
 package at.cp.jku.teaching.amprocessing;
 
@@ -23,7 +46,8 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.Arrays;
-import java.util.LinkedList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.AudioInputStream;
 import javax.sound.sampled.AudioSystem;
@@ -34,11 +58,32 @@ import javax.sound.sampled.AudioSystem;
  */
 public class AudioFile {
 
+    /** Feature: the magnitudes of the STFT (always computed) */
+    public static final int MAGNITUDES = 1;
+    /** Feature: the phases of the STFT */
+    public static final int PHASES = 2;
+    /** Feature: the unwrapped phases of the STFT (implies PHASES) */
+    public static final int UNWRAPPED_PHASES = 4;
+    /** All features, the default */
+    public static final int ALL_FEATURES = MAGNITUDES | PHASES | UNWRAPPED_PHASES;
+
+    /** Receives the frames of the STFT one by one in streaming mode. */
+    public interface FrameListener {
+
+        /** Called once per frame; frames.get(0) is the new frame. */
+        void frameAvailable(SpectralFrameRing frames);
+    }
+
+    // the window of the STFT (see FFT.makeWindow)
+    private static final int WINDOW = FFT.HAMMING;
+
+    private File file;
     private AudioInputStream rawInputStream;
     private AudioFormat audioFormat;
     private int channels;
     private float sampleRate;
     private AudioInputStream pcmInputStream;
+    private WavFile wavFile;
     private int hopSize;
     private int fftSize;
     private byte[] inputBuffer;
@@ -47,19 +92,34 @@ public class AudioFile {
     private double[] imBuffer;
     private int cbIndex;
     private double[] window;
+    private FFTPlan fftPlan;
     private double frameRMS;
     private int frameCount;
+    private int expectedFrames;
+    // the number of sample frames of the file, NOT_SPECIFIED if unknown
+    private long sampleFrames = AudioSystem.NOT_SPECIFIED;
+    private int features;
+    private boolean keepSamples = false;
 
     public double fftTime;
     public double hopTime;
     // Contains the Spectral Data (Magnitude, Phase, Unwrapped Phase) for each Frame
-    public LinkedList<SpectralData> spectralDataContainer;
-    // Contains the value of each sample
-    public LinkedList<Double> sampleDataContainer;
+    public Spectrogram spectrogram;
+    // Contains the value of each sample (null unless enabled)
+    public SampleBuffer sampleDataContainer;
 
     public AudioFile(String filename, double fftTime, double hopTime) {
+        this(filename, fftTime, hopTime, ALL_FEATURES);
+    }
+
+    /**
+     * @param features the data to compute for each frame, a combination of
+     * MAGNITUDES, PHASES and UNWRAPPED_PHASES
+     */
+    public AudioFile(String filename, double fftTime, double hopTime, int features) {
         this.fftTime = fftTime;
         this.hopTime = hopTime;
+        this.features = normalizeFeatures(features);
         try {
             File audioFile = new File(filename);
 
@@ -67,20 +127,30 @@ public class AudioFile {
                 throw new FileNotFoundException(
                         "Requested file does not exist: " + filename);
             }
-            rawInputStream = AudioSystem.getAudioInputStream(audioFile);
-            audioFormat = rawInputStream.getFormat();
-            channels = audioFormat.getChannels();
-            sampleRate = audioFormat.getSampleRate();
-            pcmInputStream = rawInputStream;
-            if ((audioFormat.getEncoding() != AudioFormat.Encoding.PCM_SIGNED)
-                    || (audioFormat.getFrameSize() != channels * 2)
-                    || audioFormat.isBigEndian()) {
-                AudioFormat desiredFormat = new AudioFormat(
-                        AudioFormat.Encoding.PCM_SIGNED, sampleRate, 16,
-                        channels, channels * 2, sampleRate, false);
-                pcmInputStream = AudioSystem.getAudioInputStream(desiredFormat,
-                        rawInputStream);
-                audioFormat = desiredFormat;
+            file = audioFile;
+            long frameLength;
+            wavFile = WavFile.open(audioFile);
+            if (wavFile != null) {
+                channels = wavFile.getChannels();
+                sampleRate = wavFile.getSampleRate();
+                frameLength = wavFile.getFrameLength();
+            } else {
+                rawInputStream = AudioSystem.getAudioInputStream(audioFile);
+                audioFormat = rawInputStream.getFormat();
+                channels = audioFormat.getChannels();
+                sampleRate = audioFormat.getSampleRate();
+                frameLength = rawInputStream.getFrameLength();
+                pcmInputStream = rawInputStream;
+                if ((audioFormat.getEncoding() != AudioFormat.Encoding.PCM_SIGNED)
+                        || (audioFormat.getFrameSize() != channels * 2)
+                        || audioFormat.isBigEndian()) {
+                    AudioFormat desiredFormat = new AudioFormat(
+                            AudioFormat.Encoding.PCM_SIGNED, sampleRate, 16,
+                            channels, channels * 2, sampleRate, false);
+                    pcmInputStream = AudioSystem.getAudioInputStream(desiredFormat,
+                            rawInputStream);
+                    audioFormat = desiredFormat;
+                }
             }
 
 
@@ -94,11 +164,12 @@ public class AudioFile {
             if ((inputBuffer == null) || (inputBuffer.length != buffSize)) {
                 inputBuffer = new byte[buffSize];
             }
+            fftPlan = FFTPlan.get(fftSize, FFT.FORWARD);
             if ((circBuffer == null) || (circBuffer.length != fftSize)) {
                 circBuffer = new double[fftSize];
                 reBuffer = new double[fftSize];
                 imBuffer = new double[fftSize];
-                window = FFT.makeWindow(FFT.HAMMING, fftSize, fftSize);
+                window = FFT.makeWindow(WINDOW, fftSize, fftSize);
                 for (int i = 0; i < fftSize; i++) {
                     window[i] *= Math.sqrt(fftSize);
                 }
@@ -111,8 +182,10 @@ public class AudioFile {
             cbIndex = 0;
             frameRMS = 0;
 
-            spectralDataContainer = new LinkedList<SpectralData>();
-            sampleDataContainer = new LinkedList<Double>();
+            sampleFrames = frameLength;
+            expectedFrames = frameLength == AudioSystem.NOT_SPECIFIED ? 0
+                    : (int) Math.min(frameLength / hopSize + 1, Integer.MAX_VALUE);
+            spectrogram = new Spectrogram(fftSize, 0, this.features);
 
 
         } catch (Exception e) {
@@ -130,6 +203,9 @@ public class AudioFile {
      *  to null.
      */
     private boolean getFrame() {
+        if (wavFile != null) {
+            return getWavFrame();
+        }
         if (pcmInputStream == null) {
             return false;
         }
@@ -153,7 +229,9 @@ public class AudioFile {
                             | (inputBuffer[i] & 0xff)) / 32768.0;
                     frameRMS += sample * sample;
                     circBuffer[cbIndex++] = sample;
-                    sampleDataContainer.add(sample);
+                    if (keepSamples) {
+                        sampleDataContainer.add(sample);
+                    }
                     if (cbIndex == fftSize) {
                         cbIndex = 0;
                     }
@@ -165,7 +243,9 @@ public class AudioFile {
                             + ((inputBuffer[i + 3] << 8) | (inputBuffer[i + 2] & 0xff))) / 65536.0;
                     frameRMS += sample * sample;
                     circBuffer[cbIndex++] = sample;
-                    sampleDataContainer.add(sample);
+                    if (keepSamples) {
+                        sampleDataContainer.add(sample);
+                    }
                     if (cbIndex == fftSize) {
                         cbIndex = 0;
                     }
@@ -180,7 +260,9 @@ public class AudioFile {
                     sample /= 32768.0 * channels;
                     frameRMS += sample * sample;
                     circBuffer[cbIndex++] = sample;
-                    sampleDataContainer.add(sample);
+                    if (keepSamples) {
+                        sampleDataContainer.add(sample);
+                    }
                     if (cbIndex == fftSize) {
                         cbIndex = 0;
                     }
@@ -190,23 +272,39 @@ public class AudioFile {
         return true;
     }
 
+    /** Like getFrame(), but decodes the samples directly from the mapped WavFile
+     *  into the circular buffer.
+     */
+    private boolean getWavFrame() {
+        if (!wavFile.readMono(circBuffer, cbIndex, hopSize)) {
+            System.out.println("End of input.\n");
+            return false;
+        }
+        frameRMS = 0;
+        for (int i = 0; i < hopSize; i++) {
+            double sample = circBuffer[cbIndex++];
+            frameRMS += sample * sample;
+            if (keepSamples) {
+                sampleDataContainer.add(sample);
+            }
+            if (cbIndex == fftSize) {
+                cbIndex = 0;
+            }
+        }
+        frameRMS = Math.sqrt(frameRMS / inputBuffer.length);
+        return true;
+    }
+
     /** Processes the Audio File
      * Reads Frames, computes the STFT and inserts Data into the spectral Container Object until EOF
      */
     public void processFile() {
 
+        spectrogram.ensureCapacity(expectedFrames);
+        createSampleStore();
         while (getFrame()) {
-            for (int i = 0; i < fftSize; i++) {
-                reBuffer[i] = window[i] * circBuffer[cbIndex];
-//                reBuffer[i] = circBuffer[cbIndex];
-                if (++cbIndex == fftSize) {
-                    cbIndex = 0;
-                }
-            }
-            Arrays.fill(imBuffer, 0);
-            FFT.magnitudePhaseFFT(reBuffer, imBuffer);
-            SpectralData s = new SpectralData(reBuffer, imBuffer, fftSize);
-            spectralDataContainer.add(s);
+            computeFrame();
+            spectrogram.add(reBuffer, imBuffer);
 
 
             frameCount++;
@@ -218,17 +316,187 @@ public class AudioFile {
             **/
 
         }
+    }
+
+    /** Processes the Audio File in parallel.
+     * Decodes the whole signal, then computes the STFT of ranges of frames
+     * concurrently on the given pool. Each task has its own window and FFT
+     * buffers, and the frames are identical to those of processFile().
+     */
+    public void processFile(ForkJoinPool pool) {
+        if (hopSize > fftSize) {
+            // the circular buffer does not hold a complete hop
+            processFile();
+            return;
+        }
+        createSampleStore();
+
+        // frame n is computed from the fftSize samples before signal[(n+1) * hopSize]
+        double[] signal = new double[Math.max(fftSize, expectedFrames * hopSize)];
+        int frames = 0;
+        while (getFrame()) {
+            if ((frames + 1) * hopSize > signal.length) {
+                signal = Arrays.copyOf(signal, signal.length + (signal.length >> 1) + hopSize);
+            }
+            int start = cbIndex - hopSize + fftSize;
+            for (int j = 0; j < hopSize; j++) {
+                signal[frames * hopSize + j] = circBuffer[(start + j) % fftSize];
+            }
+            frames++;
+        }
+
+        spectrogram.setFrames(frames);
+        pool.invoke(new FrameRangeTask(signal, 0, frames));
+        spectrogram.computeUnwrappedPhases();
+        frameCount += frames;
+    }
+
+    /** Processes the Audio File like processFile() (or processFile(pool) if
+     *  pool is not null), unless the cache holds the spectrogram of this file
+     *  with the same parameters; then it is read from there, without decoding
+     *  the file (so the samples are not kept even if enabled). A spectrogram
+     *  which has been computed is stored in the cache.
+     */
+    public void processFile(SpectrogramCache cache, ForkJoinPool pool) {
+        if (!keepSamples && cache.load(file, fftSize, hopSize, WINDOW, spectrogram)) {
+            frameCount += spectrogram.frames();
+            return;
+        }
+        if (pool != null) {
+            processFile(pool);
+        } else {
+            processFile();
+        }
+        cache.store(file, fftSize, hopSize, WINDOW, spectrogram);
+    }
+
+    // computes the frames [from, to) of the spectrogram from the decoded signal
+    private class FrameRangeTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+        private static final int FRAMES_PER_TASK = 64;
+        private final double[] signal;
+        private final int from, to;
+
+        FrameRangeTask(double[] signal, int from, int to) {
+            this.signal = signal;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > FRAMES_PER_TASK) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new FrameRangeTask(signal, from, mid), new FrameRangeTask(signal, mid, to));
+                return;
+            }
+            double[] re = new double[fftSize];
+            double[] im = new double[fftSize];
+            for (int n = from; n < to; n++) {
+                int start = (n + 1) * hopSize - fftSize;
+                for (int i = 0; i < fftSize; i++) {
+                    re[i] = window[i] * (start + i < 0 ? 0 : signal[start + i]);
+                }
+                transform(re, im);
+                spectrogram.set(n, re, im);
+            }
+        }
+    }
+
+    /** Processes the Audio File in streaming mode.
+     * Reads Frames and computes the STFT until EOF like processFile(), but
+     * instead of storing the frames they are handed to the listener through
+     * a ring which holds only the most recent frames.
+     * @param listener receives each frame as soon as it is computed
+     * @param history the number of frames (including the current one) the
+     * listener needs to access; at least 2 are kept for the phase unwrapping
+     * (the phases of a SpectralData are only valid if the features include them)
+     */
+    public void processFile(FrameListener listener, int history) {
+        boolean unwrap = hasFeature(UNWRAPPED_PHASES);
+        SpectralFrameRing frames = new SpectralFrameRing(Math.max(unwrap ? 2 : 1, history), fftSize);
+        createSampleStore();
+
+        while (getFrame()) {
+            computeFrame();
+            SpectralData s = frames.next();
+            s.set(reBuffer, imBuffer, hasFeature(PHASES));
+            if (unwrap && frames.size() == 1) {
+                Arrays.fill(s.unwrappedPhases, 0);
+            } else if (unwrap) {
+                s.computeUnwrappedPhases(frames.get(1).unwrappedPhases);
+            }
+
+            frameCount++;
+            listener.frameAvailable(frames);
+        }
+    }
+
+    private void createSampleStore() {
+        if (keepSamples && sampleDataContainer == null) {
+            sampleDataContainer = new SampleBuffer((int) Math.min((long) expectedFrames * hopSize, Integer.MAX_VALUE));
+        }
+    }
 
-        for(int i = 0; i < spectralDataContainer.size(); i++) {
-            if(i == 0) {
-                Arrays.fill(spectralDataContainer.get(i).unwrappedPhases, 0);
-                continue;
+    /** Windows the content of the circular buffer and computes its FFT
+     *  (magnitude in reBuffer, phase in imBuffer if the phases are needed,
+     *  bins 0 to fftSize/2).
+     */
+    private void computeFrame() {
+        for (int i = 0; i < fftSize; i++) {
+            reBuffer[i] = window[i] * circBuffer[cbIndex];
+//            reBuffer[i] = circBuffer[cbIndex];
+            if (++cbIndex == fftSize) {
+                cbIndex = 0;
             }
-            spectralDataContainer.get(i).computeUnwrappedPhases(spectralDataContainer.get(i-1).unwrappedPhases);
         }
+        transform(reBuffer, imBuffer);
+    }
+
+    private void transform(double[] re, double[] im) {
+        if (hasFeature(PHASES)) {
+            FFT.realMagnitudePhaseFFT(fftPlan, re, im);
+        } else {
+            FFT.realMagnitudeFFT(fftPlan, re, im);
+        }
+    }
+
+    // the unwrapped phases need the phases, and the magnitudes are always computed
+    static int normalizeFeatures(int features) {
+        features |= MAGNITUDES;
+        if ((features & UNWRAPPED_PHASES) != 0) {
+            features |= PHASES;
+        }
+        return features;
+    }
+
+    public boolean hasFeature(int feature) {
+        return (features & feature) == feature;
+    }
+
+    public int getFeatures() {
+        return features;
+    }
+
+    /** Enables the storage of the time domain samples in sampleDataContainer.
+     *  This is off by default as the analysis does not need it; it has to be
+     *  set before the file is processed.
+     */
+    public void setKeepSamples(boolean keepSamples) {
+        this.keepSamples = keepSamples;
+    }
+
+    public int getFftSize() {
+        return fftSize;
     }
 
     public float getSampleRate() {
         return sampleRate;
     }
+
+    /** The length of the signal in seconds, NaN if unknown. */
+    public double getDuration() {
+        return sampleFrames == AudioSystem.NOT_SPECIFIED ? Double.NaN : sampleFrames / (double) sampleRate;
+    }
 }
@@ -0,0 +1,116 @@
+/*
+ * AutocorrelationTempo.java
+ *
+ * Tempo estimation from the periodicity of the onset detection function:
+ * the autocorrelation of the (mean free) function is computed with the FFT
+ * in O(n log n), and its peaks within the lag range of the allowed tempi are
+ * the tempo candidates. Unlike the TempoHypothesis agents the cost does not
+ * depend on the number of detected onsets.
+ */
+package at.cp.jku.teaching.amprocessing;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class AutocorrelationTempo {
+
+    /** A tempo candidate: a peak of the autocorrelation. */
+    public static class Candidate {
+        public final double bpm;
+        // the autocorrelation at the lag of the tempo, relative to lag 0
+        public final double strength;
+
+        Candidate(double bpm, double strength) {
+            this.bpm = bpm;
+            this.strength = strength;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%.2f bpm (%.3f)", bpm, strength);
+        }
+    }
+
+    /**
+     * Returns the tempo candidates, the strongest first.
+     * @param odf the onset detection function, one value per frame
+     * @param hopTime the time between two frames in seconds
+     * @return the local maxima of the autocorrelation between the lags of
+     * bpmMaximum and bpmMinimum (empty if the function is too short)
+     */
+    public static List<Candidate> estimate(double[] odf, double hopTime, double bpmMinimum, double bpmMaximum) {
+        return estimate(odf, odf.length, hopTime, bpmMinimum, bpmMaximum);
+    }
+
+    // as above, of the first length values of odf
+    static List<Candidate> estimate(double[] odf, int length, double hopTime, double bpmMinimum, double bpmMaximum) {
+        int lagMin = Math.max(1, (int) Math.ceil(60 / (bpmMaximum * hopTime)));
+        int lagMax = (int) Math.floor(60 / (bpmMinimum * hopTime));
+        List<Candidate> candidates = new ArrayList<>();
+        if (length < 3 || lagMin > length - 2) {
+            return candidates;
+        }
+        lagMax = Math.min(lagMax, length - 2);
+        double[] r = autocorrelation(odf, length, lagMax + 2);
+        if (r[0] <= 0) {
+            return candidates;
+        }
+
+        for (int lag = lagMin; lag <= lagMax; lag++) {
+            if (r[lag] > r[lag - 1] && r[lag] >= r[lag + 1]) {
+                // parabolic interpolation of the peak position
+                double d = r[lag - 1] - 2 * r[lag] + r[lag + 1];
+                double offset = d < 0 ? 0.5 * (r[lag - 1] - r[lag + 1]) / d : 0;
+                candidates.add(new Candidate(60 / ((lag + offset) * hopTime), r[lag] / r[0]));
+            }
+        }
+        candidates.sort((a, b) -> Double.compare(b.strength, a.strength));
+        return candidates;
+    }
+
+    /**
+     * The autocorrelation of the mean free signal, r[lag] =
+     * sum(x[i] * x[i + lag]) / n, for lag = 0 ... lags - 1 (< n), computed
+     * via the power spectrum of the zero padded signal. This (biased)
+     * estimate decreases with the lag, so of the multiples of a period the
+     * shortest one in the tempo range is preferred.
+     */
+    static double[] autocorrelation(double[] x, int lags) {
+        return autocorrelation(x, x.length, lags);
+    }
+
+    // of the first n values of x
+    static double[] autocorrelation(double[] x, int n, int lags) {
+        int size = 2;
+        while (size < 2 * n) {
+            size <<= 1;
+        }
+        double mean = 0;
+        for (int i = 0; i < n; i++) {
+            mean += x[i];
+        }
+        mean /= n;
+
+        double[] re = new double[size];
+        double[] im = new double[size];
+        for (int i = 0; i < n; i++) {
+            re[i] = x[i] - mean;
+        }
+        FFT.realFFT(re, im);
+        // the power spectrum is real and even, so its (inverse) transform is
+        // again a real transform of the full symmetric spectrum
+        for (int k = 0; k <= size / 2; k++) {
+            re[k] = re[k] * re[k] + im[k] * im[k];
+        }
+        for (int k = 1; k < size / 2; k++) {
+            re[size - k] = re[k];
+        }
+        FFT.realFFT(re, im);
+
+        double[] r = new double[lags];
+        for (int lag = 0; lag < lags; lag++) {
+            r[lag] = re[lag] / size / n;
+        }
+        return r;
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * DoubleArray.java
+ *
+ * Growable array of primitive doubles, used for the signals of the analysis
+ * (onset detection function, onset and beat times) instead of List<Double>,
+ * so no value is boxed. asList() provides a List view for code that needs one.
+ *
+ * toArray() copies, so that the results handed out (e.g. by the getters of
+ * Processor) cannot be changed by the caller; the analysis itself reads the
+ * backing array through values() without copying.
+ */
+package at.cp.jku.teaching.amprocessing;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+public class DoubleArray {
+
+    private double[] values;
+    private int size;
+
+    public DoubleArray() {
+        this(16);
+    }
+
+    public DoubleArray(int expectedSize) {
+        values = new double[Math.max(1, expectedSize)];
+    }
+
+    public void add(double value) {
+        if (size == values.length) {
+            int capacity = values.length + (values.length >> 1) + 1;
+            if (capacity < 0 || capacity > Integer.MAX_VALUE - 8) {
+                capacity = Integer.MAX_VALUE - 8;
+                if (capacity <= size) {
+                    throw new OutOfMemoryError("Too many values");
+                }
+            }
+            values = Arrays.copyOf(values, capacity);
+        }
+        values[size++] = value;
+    }
+
+    public void addAll(DoubleArray other) {
+        for (int i = 0; i < other.size; i++) {
+            add(other.values[i]);
+        }
+    }
+
+    public double get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+        return values[index];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    /** Returns a copy of all values. */
+    public double[] toArray() {
+        return Arrays.copyOf(values, size);
+    }
+
+    /** Returns the backing array, not a copy: only the first size() values
+     *  are valid, and it is replaced when the array grows, so it must not be
+     *  kept across add().
+     */
+    double[] values() {
+        return values;
+    }
+
+    /** Returns a read-only List view of the values (boxing on access). */
+    public List<Double> asList() {
+        return new ListView();
+    }
+
+    private class ListView extends AbstractList<Double> implements RandomAccess {
+        @Override
+        public Double get(int index) {
+            return DoubleArray.this.get(index);
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * EventEvaluation.java
+ *
+ * Evaluation of detected events (onsets, beats) against the ground truth.
+ * Each ground truth event is matched in turn with the nearest estimate not
+ * matched yet, if it is within the tolerance; with the estimates sorted and
+ * the matched ones skipped in O(1) (amortized) this takes O(n + m), for any
+ * number of tolerances in the same pass.
+ */
+package at.cp.jku.teaching.amprocessing;
+
+import java.util.Arrays;
+
+public class EventEvaluation {
+
+    /** The result of one file at one tolerance. */
+    public static class Result {
+        public final double tolerance;
+        public final int truePositives, falsePositives, falseNegatives;
+
+        Result(double tolerance, int truePositives, int falsePositives, int falseNegatives) {
+            this.tolerance = tolerance;
+            this.truePositives = truePositives;
+            this.falsePositives = falsePositives;
+            this.falseNegatives = falseNegatives;
+        }
+
+        // NaN if there are no estimates
+        public double precision() {
+            return (double) truePositives / (truePositives + falsePositives);
+        }
+
+        // NaN if there is no ground truth
+        public double recall() {
+            return (double) truePositives / (truePositives + falseNegatives);
+        }
+
+        public double fMeasure() {
+            double precision = precision(), recall = recall();
+            return (2 * precision * recall) / (precision + recall);
+        }
+    }
+
+    /**
+     * Sums up the results of many files (at one tolerance): micro averages
+     * from the summed up counts, macro averages as the mean of the values of
+     * the files, where an undefined (NaN) value counts as 0.
+     */
+    public static class Aggregate {
+        private int files, truePositives, falsePositives, falseNegatives;
+        private double precisionSum, recallSum, fMeasureSum;
+
+        public void add(Result result) {
+            files++;
+            truePositives += result.truePositives;
+            falsePositives += result.falsePositives;
+            falseNegatives += result.falseNegatives;
+            precisionSum += definedOrZero(result.precision());
+            recallSum += definedOrZero(result.recall());
+            fMeasureSum += definedOrZero(result.fMeasure());
+        }
+
+        public int files() {
+            return files;
+        }
+
+        public Result micro() {
+            return new Result(Double.NaN, truePositives, falsePositives, falseNegatives);
+        }
+
+        public double macroPrecision() {
+            return precisionSum / files;
+        }
+
+        public double macroRecall() {
+            return recallSum / files;
+        }
+
+        public double macroFMeasure() {
+            return fMeasureSum / files;
+        }
+
+        private static double definedOrZero(double value) {
+            return Double.isNaN(value) ? 0 : value;
+        }
+    }
+
+    /**
+     * Merges ground truth events closer than minDistance to the previous
+     * (merged) one into their mean.
+     */
+    public static double[] mergeGroundTruth(double[] raw, double minDistance) {
+        double[] merged = new double[raw.length];
+        int size = 0;
+        for (double event : raw) {
+            if (size == 0) {
+                merged[size++] = event;
+            }
+            if (event - merged[size - 1] >= minDistance) {
+                merged[size++] = event;
+            } else {
+                merged[size - 1] = (event + merged[size - 1]) / 2;
+            }
+        }
+        return Arrays.copyOf(merged, size);
+    }
+
+    /**
+     * Matches the ground truth events, in their order, each with the nearest
+     * unmatched estimate (the earlier one of two equally near), counted as
+     * true positive if at most tolerance apart; once for every tolerance.
+     * @param estimates the detected events in seconds (need not be sorted)
+     * @param groundTruth the ground truth events in seconds, usually sorted
+     * (only then the matching is linear)
+     * @return one result per tolerance
+     */
+    public static Result[] evaluate(double[] estimates, double[] groundTruth, double... tolerances) {
+        double[] sorted = estimates.clone();
+        Arrays.sort(sorted);
+        int n = sorted.length;
+        Result[] results = new Result[tolerances.length];
+        // for each tolerance: the unmatched estimates at or after index i
+        // (right) and before index i (left, + 1), as path compressed links
+        int[][] right = new int[tolerances.length][n + 1];
+        int[][] left = new int[tolerances.length][n + 1];
+        int[] truePositives = new int[tolerances.length];
+        for (int t = 0; t < tolerances.length; t++) {
+            for (int i = 0; i <= n; i++) {
+                right[t][i] = i;
+                left[t][i] = i;
+            }
+        }
+
+        int position = 0;
+        double previous = Double.NEGATIVE_INFINITY;
+        for (double event : groundTruth) {
+            // the first estimate at or after the event
+            if (event < previous) {
+                position = lowerBound(sorted, event);
+            }
+            while (position < n && sorted[position] < event) {
+                position++;
+            }
+            previous = event;
+
+            for (int t = 0; t < tolerances.length; t++) {
+                int after = find(right[t], position);
+                int before = find(left[t], position) - 1;
+                int nearest = before;
+                if (after < n && (before < 0 || Math.abs(event - sorted[after]) < Math.abs(event - sorted[before]))) {
+                    nearest = after;
+                }
+                if (nearest >= 0 && Math.abs(event - sorted[nearest]) <= tolerances[t]) {
+                    truePositives[t]++;
+                    right[t][nearest] = nearest + 1;
+                    left[t][nearest + 1] = nearest;
+                }
+            }
+        }
+
+        for (int t = 0; t < tolerances.length; t++) {
+            results[t] = new Result(tolerances[t], truePositives[t], n - truePositives[t],
+                    groundTruth.length - truePositives[t]);
+        }
+        return results;
+    }
+
+    // the root of i, halving the path on the way
+    private static int find(int[] links, int i) {
+        while (links[i] != i) {
+            links[i] = links[links[i]];
+            i = links[i];
+        }
+        return i;
+    }
+
+    private static int lowerBound(double[] sorted, double value) {
+        int low = 0, high = sorted.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (sorted[mid] < value) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
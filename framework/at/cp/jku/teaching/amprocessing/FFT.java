@@ -40,6 +40,8 @@ public class FFT {
 
     /** The FFT method. Calculation is inline, for complex data stored
      *  in 2 separate arrays. Length of input data must be a power of two.
+     *  Uses the shared {@link FFTPlan} for the size and direction, so the
+     *  twiddle factors and the bit-reversal are only computed once per size.
      *  @param re        the real part of the complex input and output data
      *  @param im        the imaginary part of the complex input and output data
      *  @param direction the direction of the Fourier transform (FORWARD or
@@ -48,54 +50,28 @@ public class FFT {
      *  not a power of 2
      */
     public static void fft(double re[], double im[], int direction) {
-        int n = re.length;
-        int bits = (int) Math.rint(Math.log(n) / Math.log(2));
-        if (n != (1 << bits)) {
-            throw new IllegalArgumentException("FFT data must be power of 2");
-        }
-        int localN;
-        int j = 0;
-        for (int i = 0; i < n - 1; i++) {
-            if (i < j) {
-                double temp = re[j];
-                re[j] = re[i];
-                re[i] = temp;
-                temp = im[j];
-                im[j] = im[i];
-                im[i] = temp;
-            }
-            int k = n / 2;
-            while ((k >= 1) && (k - 1 < j)) {
-                j = j - k;
-                k = k / 2;
-            }
-            j = j + k;
-        }
-        for (int m = 1; m <= bits; m++) {
-            localN = 1 << m;
-            double Wjk_r = 1;
-            double Wjk_i = 0;
-            double theta = twoPI / localN;
-            double Wj_r = Math.cos(theta);
-            double Wj_i = direction * Math.sin(theta);
-            int nby2 = localN / 2;
-            for (j = 0; j < nby2; j++) {
-                for (int k = j; k < n; k += localN) {
-                    int id = k + nby2;
-                    double tempr = Wjk_r * re[id] - Wjk_i * im[id];
-                    double tempi = Wjk_r * im[id] + Wjk_i * re[id];
-                    re[id] = re[k] - tempr;
-                    im[id] = im[k] - tempi;
-                    re[k] += tempr;
-                    im[k] += tempi;
-                }
-                double wtemp = Wjk_r;
-                Wjk_r = Wj_r * Wjk_r - Wj_i * Wjk_i;
-                Wjk_i = Wj_r * Wjk_i + Wj_i * wtemp;
-            }
-        }
+        FFTPlan.get(re.length, direction).fft(re, im);
     } // fft()
 
+    /** Forward FFT of a real sequence of length N, computed with a complex
+     *  FFT of length N/2: the even samples are packed into the real part and
+     *  the odd samples into the imaginary part, and the spectrum is recovered
+     *  from the conjugate symmetry of the result. Only the non-negative
+     *  frequencies (bins 0 to N/2) are returned, the remaining entries of
+     *  both arrays are undefined.
+     *  @param re the real input data and the real part of the output data
+     *  @param im the imaginary part of the output data (the input values are
+     *  ignored); same length as re
+     *  @throws IllegalArgumentException if the length of the input data is
+     *  not a power of 2 (at least 2)
+     */
+    public static void realFFT(double[] re, double[] im) {
+        if (im.length != re.length) {
+            throw new IllegalArgumentException("FFT data arrays must have the same length");
+        }
+        FFTPlan.get(re.length, FORWARD).realFFT(re, im);
+    } // realFFT()
+
     /** Computes the power spectrum of a real sequence (in place).
      *  @param re the real input and output data; length must be a power of 2
      */
@@ -143,6 +119,28 @@ public class FFT {
         }
     } // powerPhaseFFT()
 
+    /** Computes the FFT of a real sequence with realFFT() and converts the
+     *  results to polar coordinates (power and phase). Only the first N/2+1
+     *  entries of the arrays contain the output.
+     *  @param re the real input data and the power of the output data
+     *  @param im the phase of the output data (input values are ignored)
+     */
+    public static void realPowerPhaseFFT(double[] re, double[] im) {
+        realPowerPhaseFFT(FFTPlan.get(re.length, FORWARD), re, im);
+    } // realPowerPhaseFFT()
+
+    /** Same as {@link FFT#realPowerPhaseFFT(double[], double[])}, with the
+     *  given (FORWARD) plan of the length of the data.
+     */
+    public static void realPowerPhaseFFT(FFTPlan plan, double[] re, double[] im) {
+        plan.realFFT(re, im);
+        for (int i = 0; i <= plan.size() / 2; i++) {
+            double pow = re[i] * re[i] + im[i] * im[i];
+            im[i] = Math.atan2(im[i], re[i]);
+            re[i] = pow;
+        }
+    } // realPowerPhaseFFT()
+
     /** Inline computation of the inverse FFT given spectral input data
      *  in polar coordinates (power and phase).
      *  Both arrays must be the same length, which is a power of 2.
@@ -174,6 +172,40 @@ public class FFT {
         toMagnitude(re);
     } // magnitudePhaseFFT()
 
+    /** Computes the FFT of a real sequence with realFFT() and converts the
+     *  results to polar coordinates (magnitude and phase). Only the first
+     *  N/2+1 entries of the arrays contain the output.
+     *  @param re the real input data and the magnitude of the output data
+     *  @param im the phase of the output data (input values are ignored)
+     */
+    public static void realMagnitudePhaseFFT(double[] re, double[] im) {
+        realMagnitudePhaseFFT(FFTPlan.get(re.length, FORWARD), re, im);
+    } // realMagnitudePhaseFFT()
+
+    /** Same as {@link FFT#realMagnitudePhaseFFT(double[], double[])}, with
+     *  the given (FORWARD) plan of the length of the data.
+     */
+    public static void realMagnitudePhaseFFT(FFTPlan plan, double[] re, double[] im) {
+        realPowerPhaseFFT(plan, re, im);
+        for (int i = 0; i <= plan.size() / 2; i++) {
+            re[i] = Math.sqrt(re[i]);
+        }
+    } // realMagnitudePhaseFFT()
+
+    /** Computes the magnitude spectrum of a real sequence with realFFT(),
+     *  without the phases. Only the first N/2+1 entries of re contain the
+     *  output.
+     *  @param plan the (FORWARD) plan of the length of the data
+     *  @param re the real input data and the magnitude of the output data
+     *  @param im used as work space (input values are ignored)
+     */
+    public static void realMagnitudeFFT(FFTPlan plan, double[] re, double[] im) {
+        plan.realFFT(re, im);
+        for (int i = 0; i <= plan.size() / 2; i++) {
+            re[i] = Math.sqrt(re[i] * re[i] + im[i] * im[i]);
+        }
+    } // realMagnitudeFFT()
+
     /** Fill an array with the values of a standard Hamming window function
      *  @param data the array to be filled
      *  @param size the number of non zero values; if the array is larger than
@@ -355,7 +387,8 @@ public class FFT {
 
     /** Unit test of the FFT class.
      *  Performs a forward and inverse FFT on a 1MB array of random values
-     *  and checks how closely the values are preserved.
+     *  and checks how closely the values are preserved. Then compares the
+     *  real FFT of random values with the complex FFT.
      *  @param args ignored
      */
     public static void main(String[] args) {
@@ -378,6 +411,19 @@ public class FFT {
             err += Math.abs(r1[j] - r2[j] / SZ) + Math.abs(i1[j] - i2[j] / SZ);
         }
         System.out.printf("Err: %12.10f   Av: %12.10f\n", err, err / SZ);
+
+        System.out.println("real");
+        for (int j = 0; j < SZ; j++) {
+            r1[j] = r2[j] = Math.random();
+            i1[j] = 0;
+        }
+        fft(r1, i1, FORWARD);
+        realFFT(r2, i2);
+        err = 0;
+        for (int j = 0; j <= SZ / 2; j++) {
+            err += Math.abs(r1[j] - r2[j]) + Math.abs(i1[j] - i2[j]);
+        }
+        System.out.printf("Err: %12.10f   Av: %12.10f\n", err, err / (SZ / 2 + 1));
     } // main()
 } // class FFT
 
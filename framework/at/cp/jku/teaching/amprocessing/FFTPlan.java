@@ -0,0 +1,181 @@
+/*
+ * FFTPlan.java
+ */
+package at.cp.jku.teaching.amprocessing;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** Precomputed tables for the FFT of one size and direction: the twiddle
+ *  factors (computed directly with Math.cos/Math.sin, not by recurrence) and
+ *  the swaps of the bit-reversal permutation. A plan is immutable and can be
+ *  shared between threads; use {@link FFTPlan#get(int, int)} to obtain the
+ *  shared plan for a size.
+ */
+public class FFTPlan {
+
+    private static final ConcurrentHashMap<Long, FFTPlan> plans = new ConcurrentHashMap<>();
+
+    private final int n;
+    private final int direction;
+    // twiddle factors W^t = exp(direction * 2 pi i t / n), t < n/2
+    private final double[] cos;
+    private final double[] sin;
+    // pairs of indices swapped by the bit-reversal permutation of n and n/2 values
+    private final int[] swaps;
+    private final int[] halfSwaps;
+
+    /** Returns the (shared) plan for the given size and direction.
+     *  @param n the length of the data, a power of 2
+     *  @param direction FFT.FORWARD or FFT.REVERSE
+     *  @throws IllegalArgumentException if n is not a power of 2
+     */
+    public static FFTPlan get(int n, int direction) {
+        Long key = ((long) n << 1) | (direction == FFT.FORWARD ? 0 : 1);
+        FFTPlan plan = plans.get(key);
+        if (plan == null) {
+            plan = plans.computeIfAbsent(key, k -> new FFTPlan(n, direction));
+        }
+        return plan;
+    }
+
+    public FFTPlan(int n, int direction) {
+        if (n < 1 || (n & (n - 1)) != 0) {
+            throw new IllegalArgumentException("FFT data must be power of 2");
+        }
+        if (direction != FFT.FORWARD && direction != FFT.REVERSE) {
+            throw new IllegalArgumentException("direction must be FORWARD or REVERSE");
+        }
+        this.n = n;
+        this.direction = direction;
+        cos = new double[Math.max(1, n / 2)];
+        sin = new double[Math.max(1, n / 2)];
+        for (int t = 0; t < n / 2; t++) {
+            double theta = FFT.twoPI * t / n;
+            cos[t] = Math.cos(theta);
+            sin[t] = direction * Math.sin(theta);
+        }
+        swaps = bitReversalSwaps(n);
+        halfSwaps = bitReversalSwaps(Math.max(1, n / 2));
+    }
+
+    private static int[] bitReversalSwaps(int n) {
+        int count = 0;
+        int[] pairs = new int[n];
+        int j = 0;
+        for (int i = 0; i < n - 1; i++) {
+            if (i < j) {
+                pairs[count++] = i;
+                pairs[count++] = j;
+            }
+            int k = n / 2;
+            while ((k >= 1) && (k - 1 < j)) {
+                j = j - k;
+                k = k / 2;
+            }
+            j = j + k;
+        }
+        return Arrays.copyOf(pairs, count);
+    }
+
+    public int size() {
+        return n;
+    }
+
+    public int direction() {
+        return direction;
+    }
+
+    /** The complex FFT, in place (see {@link FFT#fft(double[], double[], int)}).
+     *  @param re the real part of the complex input and output data
+     *  @param im the imaginary part of the complex input and output data
+     *  @throws IllegalArgumentException if the arrays are shorter than the plan
+     */
+    public void fft(double[] re, double[] im) {
+        if (re.length < n || im.length < n) {
+            throw new IllegalArgumentException("FFT data shorter than plan size " + n);
+        }
+        transform(re, im, n, swaps, 1);
+    }
+
+    // transforms the first m values, using every stride-th twiddle factor
+    // (W_m^t = W_n^(t*stride) with m = n/stride)
+    private void transform(double[] re, double[] im, int m, int[] swaps, int stride) {
+        for (int p = 0; p < swaps.length; p += 2) {
+            int i = swaps[p];
+            int j = swaps[p + 1];
+            double temp = re[j];
+            re[j] = re[i];
+            re[i] = temp;
+            temp = im[j];
+            im[j] = im[i];
+            im[i] = temp;
+        }
+        for (int localN = 2; localN <= m; localN <<= 1) {
+            int nby2 = localN / 2;
+            int step = (m / localN) * stride;
+            for (int j = 0; j < nby2; j++) {
+                double Wjk_r = cos[j * step];
+                double Wjk_i = sin[j * step];
+                for (int k = j; k < m; k += localN) {
+                    int id = k + nby2;
+                    double tempr = Wjk_r * re[id] - Wjk_i * im[id];
+                    double tempi = Wjk_r * im[id] + Wjk_i * re[id];
+                    re[id] = re[k] - tempr;
+                    im[id] = im[k] - tempi;
+                    re[k] += tempr;
+                    im[k] += tempi;
+                }
+            }
+        }
+    }
+
+    /** The forward FFT of a real sequence of length n, computed with a
+     *  complex FFT of length n/2 (see {@link FFT#realFFT(double[], double[])}).
+     *  Only the bins 0 to n/2 are returned.
+     *  @param re the real input data and the real part of the output data
+     *  @param im the imaginary part of the output data (input values are ignored)
+     *  @throws IllegalStateException if this is not a FORWARD plan
+     *  @throws IllegalArgumentException if the arrays are shorter than the
+     *  plan or the plan size is smaller than 2
+     */
+    public void realFFT(double[] re, double[] im) {
+        if (direction != FFT.FORWARD) {
+            throw new IllegalStateException("the real FFT needs a FORWARD plan");
+        }
+        if (n < 2 || re.length < n || im.length < n) {
+            throw new IllegalArgumentException("FFT data shorter than plan size " + n);
+        }
+        int h = n / 2;
+        for (int j = 0; j < h; j++) {
+            im[j] = re[2 * j + 1];
+            re[j] = re[2 * j];
+        }
+        transform(re, im, h, halfSwaps, 2);
+
+        double z0r = re[0];
+        double z0i = im[0];
+        re[0] = z0r + z0i;
+        im[0] = 0;
+        re[h] = z0r - z0i;
+        im[h] = 0;
+
+        for (int k = 1; k <= h / 2; k++) {
+            int l = h - k;
+            double Wk_r = cos[k];
+            double Wk_i = sin[k];
+            double ar = re[k], ai = im[k];
+            double br = re[l], bi = im[l];
+            // X[k] = (Z[k] + conj(Z[h-k])) / 2 + W^k (Z[k] - conj(Z[h-k])) / 2i
+            double er = (ar + br) / 2, ei = (ai - bi) / 2;
+            double or = (ai + bi) / 2, oi = (br - ar) / 2;
+            re[k] = er + Wk_r * or - Wk_i * oi;
+            im[k] = ei + Wk_r * oi + Wk_i * or;
+            if (l != k) {
+                // X[h-k] uses W^(h-k) = -conj(W^k) and the conjugates of the above
+                re[l] = er - Wk_r * or + Wk_i * oi;
+                im[l] = -ei + Wk_r * oi + Wk_i * or;
+            }
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * IOIHistogram.java
+ *
+ * Histogram of inter-onset intervals (in ms) with fixed-width bins, used to
+ * find the most frequent IOIs for the tempo hypotheses. Adding an IOI is
+ * O(1) and finding the k largest clusters O(k * bins), independent of the
+ * number of onsets.
+ */
+package at.cp.jku.teaching.amprocessing;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+public class IOIHistogram {
+
+    private final int binWidth;
+    private final int minimum, maximum;
+    // the bin of the IOI minimum
+    private final int firstBin;
+    private final int[] counts;
+    // the position of the first IOI of each bin among all added IOIs, -1 if empty
+    private final int[] firstOccurrence;
+    private int added = 0;
+
+    /**
+     * @param binWidth the width of the bins in ms; an IOI falls into bin ioi / binWidth
+     * @param minimum the smallest IOI counted (smaller ones are ignored)
+     * @param maximum the largest IOI counted (larger ones are ignored)
+     */
+    public IOIHistogram(int binWidth, int minimum, int maximum) {
+        if (binWidth < 1 || minimum < 0 || maximum < minimum) {
+            throw new IllegalArgumentException("invalid histogram range");
+        }
+        this.binWidth = binWidth;
+        this.minimum = minimum;
+        this.maximum = maximum;
+        this.firstBin = minimum / binWidth;
+        this.counts = new int[maximum / binWidth - firstBin + 1];
+        this.firstOccurrence = new int[counts.length];
+        Arrays.fill(firstOccurrence, -1);
+    }
+
+    public void add(int ioi) {
+        if (ioi < minimum || ioi > maximum) {
+            return;
+        }
+        int bin = ioi / binWidth - firstBin;
+        if (counts[bin]++ == 0) {
+            firstOccurrence[bin] = added;
+        }
+        added++;
+    }
+
+    public void addAll(IntArray iois) {
+        for (int i = 0; i < iois.size(); i++) {
+            add(iois.get(i));
+        }
+    }
+
+    /** The number of IOIs within the range of the histogram. */
+    public int size() {
+        return added;
+    }
+
+    /**
+     * Returns up to k clusters as {IOI, count}, the most frequent first. A
+     * cluster is a bin together with the (not yet taken) bins up to tolerance
+     * bins to either side; its IOI is the lower edge of the center bin. Of
+     * clusters with the same count the one whose center bin was filled first
+     * is taken, so with tolerance 0 and IOIs which are multiples of the bin
+     * width these are the k most frequent IOIs, ties broken by first
+     * occurrence.
+     */
+    public ArrayList<int[]> mostFrequent(int k, int tolerance) {
+        ArrayList<int[]> clusters = new ArrayList<int[]>();
+        boolean[] taken = new boolean[counts.length];
+        for (int c = 0; c < k; c++) {
+            int best = -1, bestCount = 0;
+            for (int b = 0; b < counts.length; b++) {
+                if (taken[b] || counts[b] == 0) {
+                    continue;
+                }
+                int count = clusterCount(b, tolerance, taken);
+                if (count > bestCount || (count == bestCount && firstOccurrence[b] < firstOccurrence[best])) {
+                    best = b;
+                    bestCount = count;
+                }
+            }
+            if (best < 0) {
+                break;
+            }
+            for (int b = Math.max(0, best - tolerance); b <= Math.min(counts.length - 1, best + tolerance); b++) {
+                taken[b] = true;
+            }
+            clusters.add(new int[] { (best + firstBin) * binWidth, bestCount });
+        }
+        return clusters;
+    }
+
+    private int clusterCount(int center, int tolerance, boolean[] taken) {
+        int count = 0;
+        for (int b = Math.max(0, center - tolerance); b <= Math.min(counts.length - 1, center + tolerance); b++) {
+            if (!taken[b]) {
+                count += counts[b];
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * IntArray.java
+ *
+ * Growable array of primitive ints (onset frames, inter-onset intervals),
+ * the counterpart of DoubleArray (toArray() copies, values() does not).
+ */
+package at.cp.jku.teaching.amprocessing;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.function.IntPredicate;
+
+public class IntArray {
+
+    private int[] values;
+    private int size;
+
+    public IntArray() {
+        this(16);
+    }
+
+    public IntArray(int expectedSize) {
+        values = new int[Math.max(1, expectedSize)];
+    }
+
+    public void add(int value) {
+        if (size == values.length) {
+            int capacity = values.length + (values.length >> 1) + 1;
+            if (capacity < 0 || capacity > Integer.MAX_VALUE - 8) {
+                capacity = Integer.MAX_VALUE - 8;
+                if (capacity <= size) {
+                    throw new OutOfMemoryError("Too many values");
+                }
+            }
+            values = Arrays.copyOf(values, capacity);
+        }
+        values[size++] = value;
+    }
+
+    public void addAll(IntArray other) {
+        for (int i = 0; i < other.size; i++) {
+            add(other.values[i]);
+        }
+    }
+
+    public int get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+        return values[index];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    /** Removes all values matching the filter, keeping the order of the others. */
+    public void removeIf(IntPredicate filter) {
+        int kept = 0;
+        for (int i = 0; i < size; i++) {
+            if (!filter.test(values[i])) {
+                values[kept++] = values[i];
+            }
+        }
+        size = kept;
+    }
+
+    /** Returns a copy of all values. */
+    public int[] toArray() {
+        return Arrays.copyOf(values, size);
+    }
+
+    /** Returns the backing array, not a copy (see DoubleArray.values()). */
+    int[] values() {
+        return values;
+    }
+
+    /** Returns a read-only List view of the values (boxing on access). */
+    public List<Integer> asList() {
+        return new ListView();
+    }
+
+    private class ListView extends AbstractList<Integer> implements RandomAccess {
+        @Override
+        public Integer get(int index) {
+            return IntArray.this.get(index);
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * OnlineOnsetDetector.java
+ *
+ * Onset detection for live input: the (mono) samples are pushed in blocks of
+ * any length (typically one hop), each complete hop produces a frame of the
+ * STFT exactly as in AudioFile, its value of the onset detection function
+ * and, through a PeakPicker with bounded lookahead, the onsets. An onset at
+ * frame n is reported to the listener at the latest when frame n + lookahead
+ * is complete, so the latency is bounded by lookahead frames (plus the hop
+ * which completes the frame). Nothing is allocated per block.
+ */
+package at.cp.jku.teaching.amprocessing;
+
+public class OnlineOnsetDetector {
+
+    /** Receives the onsets, in increasing order. */
+    public interface OnsetListener {
+        /** @param time the time of the onset in seconds
+         *  @param frame the frame of the onset */
+        void onsetDetected(double time, int frame);
+    }
+
+    private final int hopSize;
+    private final int fftSize;
+    private final double hopTime;
+    private final int lookahead;
+    private final boolean withPhases;
+    private final FFTPlan fftPlan;
+    private final double[] window;
+    private final double[] circBuffer;
+    private final double[] reBuffer;
+    private final double[] imBuffer;
+    private final OnsetDetectionFunction function;
+    private final PeakPicker picker;
+    private final OnsetListener listener;
+    private int cbIndex = 0;
+    // samples of the current hop received so far
+    private int hopFill = 0;
+    private int frameCount = 0;
+    private int lastOnset = -OnsetProcessor.MIN_DELAY;
+
+    /** An online detector with the parameters of Processor (46 ms FFT, 10 ms hop).
+     *  @param function the name of the onset detection function (see OnsetDetectionFunctions)
+     *  @param lookahead the maximum latency in frames (0: causal)
+     */
+    public OnlineOnsetDetector(float sampleRate, String function, int lookahead, OnsetListener listener) {
+        this(sampleRate, 0.046439, 0.01, function, lookahead, listener);
+    }
+
+    /** @param fftTime the size of the FFT in seconds, rounded as in AudioFile
+     *  @param hopTime the hop size in seconds
+     *  @throws IllegalArgumentException if the function is unknown or lookahead < 0
+     */
+    public OnlineOnsetDetector(float sampleRate, double fftTime, double hopTime, String function,
+            int lookahead, OnsetListener listener) {
+        if (lookahead < 0) {
+            throw new IllegalArgumentException("lookahead must not be negative");
+        }
+        OnsetDetectionFunctions.Type type = OnsetDetectionFunctions.get(function);
+        // the same sizes as in AudioFile
+        this.hopSize = (int) Math.round(sampleRate * hopTime);
+        this.hopTime = hopSize / sampleRate;
+        this.fftSize = (int) Math.round(Math.pow(2,
+                Math.round(Math.log(fftTime * sampleRate) / Math.log(2))));
+        this.lookahead = lookahead;
+        this.withPhases = (type.features & AudioFile.PHASES) != 0;
+        this.fftPlan = FFTPlan.get(fftSize, FFT.FORWARD);
+        this.window = FFT.makeWindow(FFT.HAMMING, fftSize, fftSize);
+        for (int i = 0; i < fftSize; i++) {
+            window[i] *= Math.sqrt(fftSize);
+        }
+        this.circBuffer = new double[fftSize];
+        this.reBuffer = new double[fftSize];
+        this.imBuffer = new double[fftSize];
+        this.function = type.create(fftSize / 2 + 1, sampleRate);
+        this.picker = new PeakPicker(type.threshold, OnsetProcessor.WINDOW_MAX, OnsetProcessor.WINDOW_MEAN,
+                lookahead, this::peak);
+        this.listener = listener;
+    }
+
+    /** Processes samples (mono, scaled to [-1, 1]). */
+    public void process(double[] samples) {
+        process(samples, 0, samples.length);
+    }
+
+    /** Processes length samples starting at offset. */
+    public void process(double[] samples, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            circBuffer[cbIndex++] = samples[i];
+            if (cbIndex == fftSize) {
+                cbIndex = 0;
+            }
+            if (++hopFill == hopSize) {
+                hopFill = 0;
+                computeFrame();
+            }
+        }
+    }
+
+    /** Ends the input: the last frames are decided with the windows clipped
+     *  at the end (an incomplete last hop is dropped, as in AudioFile). */
+    public void finish() {
+        picker.finish();
+    }
+
+    private void computeFrame() {
+        for (int i = 0, j = cbIndex; i < fftSize; i++) {
+            reBuffer[i] = window[i] * circBuffer[j];
+            if (++j == fftSize) {
+                j = 0;
+            }
+        }
+        if (withPhases) {
+            FFT.realMagnitudePhaseFFT(fftPlan, reBuffer, imBuffer);
+        } else {
+            FFT.realMagnitudeFFT(fftPlan, reBuffer, imBuffer);
+        }
+        frameCount++;
+        picker.push(function.next(reBuffer, withPhases ? imBuffer : null, 0));
+    }
+
+    private void peak(int frame) {
+        if (frame - lastOnset <= OnsetProcessor.MIN_DELAY) {
+            return;
+        }
+        lastOnset = frame;
+        listener.onsetDetected(frame * hopTime, frame);
+    }
+
+    public int getHopSize() {
+        return hopSize;
+    }
+
+    public int getFftSize() {
+        return fftSize;
+    }
+
+    /** The maximum number of frames between an onset and its report. */
+    public int getLookahead() {
+        return lookahead;
+    }
+
+    /** The number of frames computed so far. */
+    public int getFrameCount() {
+        return frameCount;
+    }
+}
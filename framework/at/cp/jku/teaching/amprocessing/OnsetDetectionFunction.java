@@ -0,0 +1,26 @@
+/*
+ * OnsetDetectionFunction.java
+ *
+ * An onset detection function computed frame by frame from the STFT. An
+ * instance holds the state of one pass over one signal (e.g. the previous
+ * frame); the registered functions are created through
+ * OnsetDetectionFunctions.
+ */
+package at.cp.jku.teaching.amprocessing;
+
+public interface OnsetDetectionFunction {
+
+    /** Creates an instance for a signal with spectra of size bins. */
+    interface Factory {
+        OnsetDetectionFunction create(int size, float sampleRate);
+    }
+
+    /**
+     * Adds the next frame and returns the value of the function for it.
+     * Frames without enough history (e.g. the first one for a flux) have the value 0.
+     * @param magnitudes the magnitudes of the frame start at offset
+     * @param phases the phases of the frame start at offset, null if they
+     * were not computed (see AudioFile.PHASES)
+     */
+    double next(double[] magnitudes, double[] phases, int offset);
+}
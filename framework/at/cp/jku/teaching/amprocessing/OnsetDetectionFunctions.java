@@ -0,0 +1,265 @@
+/*
+ * OnsetDetectionFunctions.java
+ *
+ * Registry of the onset detection functions which can be selected by name
+ * (Runner option -f), together with the STFT features each one needs and
+ * the threshold of its peak picking, and the built-in functions.
+ */
+package at.cp.jku.teaching.amprocessing;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class OnsetDetectionFunctions {
+
+    /** A registered onset detection function. */
+    public static class Type {
+        public final String name;
+        // the features of the STFT needed (see AudioFile)
+        public final int features;
+        // the threshold used when picking the peaks of this function
+        public final double threshold;
+        private final OnsetDetectionFunction.Factory factory;
+
+        Type(String name, int features, double threshold, OnsetDetectionFunction.Factory factory) {
+            this.name = name;
+            this.features = features;
+            this.threshold = threshold;
+            this.factory = factory;
+        }
+
+        public OnsetDetectionFunction create(int size, float sampleRate) {
+            return factory.create(size, sampleRate);
+        }
+    }
+
+    // the name of the registered logFiltSpecFlux(size, sampleRate, 1)
+    public static final String LOG_FILT_SPEC_FLUX = "logFiltSpecFlux";
+    public static final String DEFAULT = LOG_FILT_SPEC_FLUX;
+
+    private static final Map<String, Type> types = new LinkedHashMap<>();
+
+    static {
+        register("spectralFluxL1", AudioFile.MAGNITUDES, 3, (size, sampleRate) -> new SpectralFluxL1(size));
+        register("spectralFluxL2", AudioFile.MAGNITUDES, 0.3, (size, sampleRate) -> new SpectralFluxL2(size));
+        register("complexDomain", AudioFile.MAGNITUDES | AudioFile.PHASES, 2.5, (size, sampleRate) -> new ComplexDomain(size));
+        // semitone filtered, lambda = 1 (TODO find out if there's a better value)
+        register(LOG_FILT_SPEC_FLUX, AudioFile.MAGNITUDES, 1.0,
+                (size, sampleRate) -> logFiltSpecFlux(size, sampleRate, 1));
+        register("highFreqContent", AudioFile.MAGNITUDES, 0.2, (size, sampleRate) -> new HighFreqContent(size));
+    }
+
+    /** Registers (or replaces) an onset detection function. */
+    public static synchronized void register(String name, int features, double threshold,
+            OnsetDetectionFunction.Factory factory) {
+        types.put(name, new Type(name, features, threshold, factory));
+    }
+
+    /** @throws IllegalArgumentException if there is no function of that name */
+    public static synchronized Type get(String name) {
+        Type type = types.get(name);
+        if (type == null) {
+            throw new IllegalArgumentException("Unknown onset detection function " + name + ", available: " + names());
+        }
+        return type;
+    }
+
+    public static synchronized List<String> names() {
+        return new ArrayList<>(types.keySet());
+    }
+
+    /** The features of the STFT needed by all of the given functions. */
+    public static int requiredFeatures(String... names) {
+        int features = AudioFile.MAGNITUDES;
+        for (String name : names) {
+            features |= get(name).features;
+        }
+        return features;
+    }
+
+    /** The logarithmic filtered spectral flux with the given lambda (the
+     *  registered one uses 1): the flux of log(lambda * x + 1) of the semitone
+     *  filtered magnitudes x. */
+    public static OnsetDetectionFunction logFiltSpecFlux(int size, float sampleRate, double lambda) {
+        return new LogFiltSpecFlux(OnsetProcessor.SemitoneFilter.get(size, sampleRate), size, lambda);
+    }
+
+    private static double square(double x) {
+        return x * x;
+    }
+
+    /**
+     * Rectify, i.e. zero for negative x;
+     */
+    private static double H(double x) {
+        return (x + Math.abs(x)) / 2;
+    }
+
+    // difference of the total energy (sum of the magnitudes) to the previous frame
+    private static class SpectralFluxL1 implements OnsetDetectionFunction {
+        private final int size;
+        private double previous;
+        private boolean first = true;
+
+        SpectralFluxL1(int size) {
+            this.size = size;
+        }
+
+        @Override
+        public double next(double[] magnitudes, double[] phases, int offset) {
+            double energy = 0;
+            for (int i = 0; i < size; i++) {
+                energy += magnitudes[offset + i];
+            }
+            double df = first ? 0 : energy - previous;
+            first = false;
+            previous = energy;
+            return df;
+        }
+    }
+
+    // spectral flux using L^2-norm on rectified distance
+    private static class SpectralFluxL2 implements OnsetDetectionFunction {
+        private final int size;
+        private final double[] previous;
+        private boolean first = true;
+
+        SpectralFluxL2(int size) {
+            this.size = size;
+            this.previous = new double[size];
+        }
+
+        @Override
+        public double next(double[] magnitudes, double[] phases, int offset) {
+            double sd = 0;
+            if (!first) {
+                for (int k = 0; k < size; k++) {
+                    sd += square(H(magnitudes[offset + k] - previous[k]));
+                }
+                sd = Math.sqrt(sd);
+            }
+            first = false;
+            System.arraycopy(magnitudes, offset, previous, 0, size);
+            return sd;
+        }
+    }
+
+    // rectified complex domain
+    private static class ComplexDomain implements OnsetDetectionFunction {
+        private final boolean rectify = true;
+        private final int size;
+        // magnitudes of the previous frame, phases of the previous two frames
+        private final double[] magnitudes1;
+        private double[] phases1;
+        private double[] phases2;
+        private int frame = 0;
+
+        ComplexDomain(int size) {
+            this.size = size;
+            this.magnitudes1 = new double[size];
+            this.phases1 = new double[size];
+            this.phases2 = new double[size];
+        }
+
+        @Override
+        public double next(double[] magnitudes, double[] phases, int offset) {
+            if (phases == null) {
+                throw new IllegalStateException("complexDomain needs the phases (AudioFile.PHASES)");
+            }
+            double rcd = 0;
+            if (frame >= 2) {
+                for (int k = 0; k < size; k++) {
+                    // Xt(n,k) = |X(n-1,k)| * e^(φ(n-1,k) + φ'(n-1,k))
+                    double xt = Math.abs(magnitudes1[k]) * Math.exp(phases1[k] + phases1[k] - phases2[k]);
+                    double x = magnitudes[offset + k];
+                    double cd = Math.abs(x - xt);
+                    rcd += !rectify || (Math.abs(x) >= Math.abs(xt)) ? cd : 0.0;
+                }
+            }
+            frame++;
+            double[] tmp = phases2;
+            phases2 = phases1;
+            phases1 = tmp;
+            System.arraycopy(phases, offset, phases1, 0, size);
+            System.arraycopy(magnitudes, offset, magnitudes1, 0, size);
+            return rcd;
+        }
+    }
+
+    // Computes the logarithmic filtered spectral flux frame by frame. The
+    // filtered log spectrum of each frame is computed once and kept for the
+    // next frame; nothing is allocated per frame.
+    private static class LogFiltSpecFlux implements OnsetDetectionFunction {
+        private final OnsetProcessor.SemitoneFilter filter;
+        private final int size;
+        private final double lambda;
+        private double[] previous;
+        private double[] current;
+        private boolean first = true;
+
+        // no filtering if filter == null
+        LogFiltSpecFlux(OnsetProcessor.SemitoneFilter filter, int size, double lambda) {
+            this.filter = filter;
+            this.size = size;
+            this.lambda = lambda;
+            int bins = filter != null ? filter.getBinCount() : size;
+            previous = new double[bins];
+            current = new double[bins];
+        }
+
+        @Override
+        public double next(double[] magnitudes, double[] phases, int offset) {
+            if (filter != null) {
+                filter.apply(magnitudes, offset, current);
+            } else {
+                System.arraycopy(magnitudes, offset, current, 0, size);
+            }
+            for (int b = 0; b < current.length; b++) {
+                current[b] = Math.log(lambda * current[b] + 1);
+            }
+
+            double df = 0;
+            if (!first) {
+                for (int b = 0; b < current.length; b++) {
+                    df += H(Math.abs(current[b]) - Math.abs(previous[b]));
+                }
+            }
+            first = false;
+
+            double[] tmp = previous;
+            previous = current;
+            current = tmp;
+            return df;
+        }
+    }
+
+    // high frequency content, weighted with the bin index
+    private static class HighFreqContent implements OnsetDetectionFunction {
+        private final boolean square = false;
+        private final int size;
+        private boolean first = true;
+
+        HighFreqContent(int size) {
+            this.size = size;
+        }
+
+        @Override
+        public double next(double[] magnitudes, double[] phases, int offset) {
+            if (first) {
+                first = false;
+                return 0;
+            }
+            double e = 0;
+            for (int k = 0; k < size; k++) {
+                double wk = k; // weight = k; not psychoacoustically informed...
+                double xk = magnitudes[offset + k];
+                if (square) xk *= xk;
+                e += wk * xk;
+            }
+            e /= size;
+            return e;
+        }
+    }
+}
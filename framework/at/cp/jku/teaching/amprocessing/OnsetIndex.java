@@ -0,0 +1,56 @@
+/*
+ * OnsetIndex.java
+ *
+ * The onset times of an analysis in ms, sorted and immutable, so that all
+ * TempoHypothesis objects can share one copy and search it in O(log n).
+ */
+package at.cp.jku.teaching.amprocessing;
+
+import java.util.Arrays;
+
+public class OnsetIndex {
+
+    private final double[] times;
+
+    /** @param onsetTimes the onset times in seconds (need not be sorted) */
+    public OnsetIndex(double[] onsetTimes) {
+        this(onsetTimes, onsetTimes.length);
+    }
+
+    // the first count of the onset times
+    OnsetIndex(double[] onsetTimes, int count) {
+        times = new double[count];
+        for (int i = 0; i < count; i++) {
+            times[i] = onsetTimes[i] * 1000;
+        }
+        Arrays.sort(times);
+    }
+
+    public int size() {
+        return times.length;
+    }
+
+    /** The i-th onset time in ms. */
+    public double get(int i) {
+        return times[i];
+    }
+
+    /** The last onset time in ms. */
+    public double last() {
+        return times[times.length - 1];
+    }
+
+    /** The index of the first onset at or after time (in ms), size() if there is none. */
+    public int ceilingIndex(double time) {
+        int low = 0, high = times.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (times[mid] < time) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
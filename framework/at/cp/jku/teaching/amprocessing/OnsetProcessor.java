@@ -2,62 +2,194 @@ package at.cp.jku.teaching.amprocessing;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 
 public class OnsetProcessor {
 
+    // two onsets are more than MIN_DELAY frames apart
+    static final int MIN_DELAY = 5;
+    // window sizes (in frames) of the peak picking
+    static final int WINDOW_MAX = 9;
+    static final int WINDOW_MEAN = 19;
+
     private AudioFile audiofile;
     // this List should contain your results of the onset detection step (onset
     // times in seconds)
-    private List<Double> onsets;
+    private DoubleArray onsets;
     // this may contain your intermediate results (in frames, before conversion
     // to time in seconds)
-    private List<Integer> onsetsFrames;
-
-    List<Double> odfValues = new ArrayList<>();
-    List<Double> localMaxValues = new ArrayList<>();
-    List<Double> localMeanValues = new ArrayList<>();
-
-    public OnsetProcessor(AudioFile audiofile, List<Double> onsets, List<Integer> onsetsFrames) {
+    private IntArray onsetsFrames;
+
+    // the parameters of the peak picking (threshold NaN: the one of the function)
+    private double threshold = Double.NaN;
+    private int windowMax = WINDOW_MAX;
+    private int windowMean = WINDOW_MEAN;
+    private int minDelay = MIN_DELAY;
+    // the costs of the stages are recorded here
+    private StageMetrics metrics = new StageMetrics(null);
+
+    DoubleArray odfValues = new DoubleArray();
+    Map<String, DoubleArray> odfValuesByFunction = new LinkedHashMap<>();
+    DoubleArray localMaxValues = new DoubleArray();
+    DoubleArray localMeanValues = new DoubleArray();
+
+    public OnsetProcessor(AudioFile audiofile, DoubleArray onsets, IntArray onsetsFrames) {
         this.onsets = onsets;
         this.onsetsFrames = onsetsFrames;
         this.audiofile = audiofile;
     }
 
+    // Sets the parameters of the peak picking, instead of the threshold of the
+    // onset detection function (unless threshold is NaN) and the constants
+    public void setPeakPicking(double threshold, int windowMax, int windowMean, int minDelay) {
+        this.threshold = threshold;
+        this.windowMax = windowMax;
+        this.windowMean = windowMean;
+        this.minDelay = minDelay;
+    }
+
+    // Records the costs of the onset detection function and the peak picking
+    // (in streaming mode of the whole pass, as STFT) in the given metrics
+    public void setMetrics(StageMetrics metrics) {
+        this.metrics = metrics;
+    }
+
     // This method is called from the Runner and is the starting point of your
     // onset detection / tempo extraction code
     public void analyzeOnsets() {
+        analyzeOnsets(OnsetDetectionFunctions.DEFAULT);
+    }
+
+    // Computes the given onset detection functions (see OnsetDetectionFunctions)
+    // in one pass over the spectrogram; the onsets are picked from the first
+    // one, the values of the others are kept for comparison (getOdfValues)
+    public void analyzeOnsets(String... functions) {
         System.out.println("Starting Onset Analysis...");
 
         //adaptiveWhitening();
 
-        //spectralFluxL1();
-        //spectralFluxL2();
-        //complexDomain();
-        logFiltSpecFlux();
-        //highFreqContent();
+        StageMetrics.Timer timer = metrics.start(StageMetrics.Stage.ODF);
+        try {
+            computeFunctions(functions);
+        } finally {
+            timer.stop();
+        }
+        timer = metrics.start(StageMetrics.Stage.PEAK_PICKING);
+        try {
+            peakPicking(thresholdOf(functions[0]));
+        } finally {
+            timer.stop();
+        }
 
         //System.out.println("onsets = " + onsets.stream().map(d -> String.format("%.2f", d)).collect(Collectors.toList()));
     }
 
+    // The features of the STFT (see AudioFile) needed by the given onset
+    // detection functions
+    public static int requiredFeatures(String... functions) {
+        return OnsetDetectionFunctions.requiredFeatures(functions);
+    }
+
+    public static int requiredFeatures() {
+        return requiredFeatures(OnsetDetectionFunctions.DEFAULT);
+    }
+
+    // Same as analyzeOnsets, but the frames are processed while the audio
+    // file is read (AudioFile.processFile(FrameListener, int)), so the
+    // spectrogram is never stored completely (only the onset detection
+    // function, one value per frame). Only the first of the given functions
+    // is computed.
+    public void analyzeOnsetsStreaming(String... functions) {
+        System.out.println("Starting Streaming Onset Analysis...");
+
+        final OnsetDetectionFunctions.Type type = OnsetDetectionFunctions.get(functions[0]);
+        final OnsetDetectionFunction function = type.create(audiofile.getFftSize() / 2 + 1, audiofile.getSampleRate());
+        final boolean withPhases = audiofile.hasFeature(AudioFile.PHASES);
+        odfValuesByFunction.put(functions[0], odfValues);
+        final PeakPicker picker = new PeakPicker(thresholdOf(functions[0]), windowMax, windowMean, n -> {
+            if (minDelayExceeded(n)) {
+                addOnsetAt(n);
+            }
+        });
+
+        StageMetrics.Timer timer = metrics.start(StageMetrics.Stage.STFT);
+        try {
+            audiofile.processFile(frames -> {
+                SpectralData frame = frames.get(0);
+                double value = function.next(frame.magnitudes, withPhases ? frame.phases : null, 0);
+                odfValues.add(value);
+                picker.push(value);
+            }, 1);
+            picker.finish();
+        } finally {
+            timer.stop();
+        }
+    }
+
+    public void analyzeOnsetsStreaming() {
+        analyzeOnsetsStreaming(OnsetDetectionFunctions.DEFAULT);
+    }
+
+    // the values of a function computed by analyzeOnsets (a copy)
+    public double[] getOdfValues(String function) {
+        DoubleArray values = odfValuesByFunction.get(function);
+        return values != null ? values.toArray() : null;
+    }
+
+    // the same without copying, null if not computed
+    DoubleArray odfValues(String function) {
+        return odfValuesByFunction.get(function);
+    }
+
+    // Computes all functions frame by frame in a single pass over the
+    // spectrogram; odfValues are the values of the first one
+    private void computeFunctions(String... functions) {
+        Spectrogram spectrogram = audiofile.spectrogram;
+        double[] magnitudes = spectrogram.magnitudes();
+        double[] phases = spectrogram.phases();
+        int size = spectrogram.size();
+
+        OnsetDetectionFunction[] instances = new OnsetDetectionFunction[functions.length];
+        DoubleArray[] values = new DoubleArray[functions.length];
+        for (int i = 0; i < functions.length; i++) {
+            instances[i] = OnsetDetectionFunctions.get(functions[i]).create(size, audiofile.getSampleRate());
+            values[i] = new DoubleArray(spectrogram.frames());
+            odfValuesByFunction.put(functions[i], values[i]);
+        }
+
+        for (int frame = 0; frame < spectrogram.frames(); frame++) {
+            int offset = spectrogram.offset(frame);
+            for (int i = 0; i < instances.length; i++) {
+                values[i].add(instances[i].next(magnitudes, phases, offset));
+            }
+        }
+        odfValues = values[0];
+    }
+
     protected void adaptiveWhitening() {
         // TODO find suitable parameters
         double m = 0.005; // memory coefficient
         double r = 0.0001; // floor parameter
+        Spectrogram spectrogram = audiofile.spectrogram;
+        double[] magnitudes = spectrogram.magnitudes();
+        int size = spectrogram.size();
         double[] P1 = null;
-        for (int frame = 0; frame < audiofile.spectralDataContainer.size(); frame++) {
-            SpectralData current = audiofile.spectralDataContainer.get(frame);
+        for (int frame = 0; frame < spectrogram.frames(); frame++) {
+            int offset = spectrogram.offset(frame);
 
-            double[] P = new double[current.size];
-            for (int k = 0; k < current.size; k++) {
-                double s = current.magnitudes[k];
+            double[] P = new double[size];
+            for (int k = 0; k < size; k++) {
+                double s = magnitudes[offset + k];
                 P[k] = Math.max(s, r);
                 if (frame > 0) {
                     P[k] = Math.max(P[k], m * P1[k]);
                 }
-                current.magnitudes[k] /= P[k];
+                magnitudes[offset + k] /= P[k];
             }
             P1 = P;
         }
@@ -77,200 +209,76 @@ public class OnsetProcessor {
         }
     }
 
-    protected void logFiltSpecFlux() {
-        boolean semitoneFilter = true;
-
-        odfValues.add(0.0);
-
-        final Function<double[], double[]> filter;
-        if (semitoneFilter) {
-            filter = new SemitoneFilter(audiofile.spectralDataContainer.get(0).size);
-        } else {
-            filter = Function.identity();
-        }
-
-        for (int frame = 1; frame < audiofile.spectralDataContainer.size(); frame++) {
-            SpectralData previous = audiofile.spectralDataContainer.get(frame - 1);
-            SpectralData current = audiofile.spectralDataContainer.get(frame);
-
-            double[] filtMag1 = filter.apply(previous.magnitudes);
-            double[] filtMag = filter.apply(current.magnitudes);
-
-            double df = 0;
-            for (int b = 0; b < filtMag.length; b++) {
-                double lambda = 1; // TODO find out if there's a better value
-                double Xfilt = filtMag[b];
-                double Xfilt1 = filtMag1[b];
-                double Xlogfilt = Math.log(lambda * Xfilt + 1);
-                double Xlogfilt1 = Math.log(lambda * Xfilt1 + 1);
-                df += H(Math.abs(Xlogfilt) - Math.abs(Xlogfilt1));
-            }
-
-            odfValues.add(df);
-        }
-
-        peakPicking(1.0);
-    }
-
     private void peakPicking(double threshold) {
         assert onsets.isEmpty();
-        int windowMax = 9;
-        int windowMean = 19;
-        int w1 = windowMax / 2, w2 = windowMax / 2;
-        int w3 = windowMean / 2, w4 = windowMean / 2;
-
         localMaxValues.add(0.0);
         localMeanValues.add(0.0);
-        for (int n = 1; n < odfValues.size(); n++) {
-            double odf = odfValues.get(n);
-            double max = windowSubList(n, w1, w2).stream().mapToDouble(Double::doubleValue).max().getAsDouble();
-            double mean = windowSubList(n, w3, w4).stream().mapToDouble(Double::doubleValue).average().getAsDouble();
+        PeakPicker picker = new PeakPicker(threshold, windowMax, windowMean, n -> {
+            if (minDelayExceeded(n)) {
+                addOnsetAt(n);
+            }
+        }, (n, max, mean) -> {
             localMaxValues.add(max);
             localMeanValues.add(mean);
-            if (odf != max) {
-                continue;
-            }
-            if (odf < mean + threshold) {
-                continue;
-            }
-            if (!minDelayExceeded(n)) {
-                continue;
-            }
-            addOnsetAt(n);
-        }
-    }
-
-    private List<Double> windowSubList(int n, int w1, int w2) {
-        int min = 1;
-        int max = odfValues.size() - 1;
-        int from = Math.max(min, n-w1);
-        int to = Math.min(max, n+w2);
-        assert from <= n && to >= n;
-
-        // if we don't have enough frames on one side to fill half of the window, extend the window to the other side
-        if (from > n - w1) {
-            to = Math.min(max, to + (from - (n - w1)));
-        } else if (to < n + w2) {
-            from = Math.max(min, from - ((n + w2) - to));
-        }
-        assert to - from == w1 + w2 || max - min < w1 + w2;
-
-        assert from >= min && to <= max;
-        return odfValues.subList(from, to + 1);
-    }
-
-    protected void complexDomain() {
-        boolean rectify = true;
-
-        odfValues.add(0.0);
-        odfValues.add(0.0);
-
-        for (int frame = 2; frame < audiofile.spectralDataContainer.size(); frame++) {
-            SpectralData previous2 = audiofile.spectralDataContainer.get(frame - 2);
-            SpectralData previous1 = audiofile.spectralDataContainer.get(frame - 1);
-            SpectralData current = audiofile.spectralDataContainer.get(frame);
-
-            double rcd = 0;
-            for (int k = 0; k < previous1.size; k++) {
-                // Xt(n,k) = |X(n-1,k)| * e^(φ(n-1,k) + φ'(n-1,k))
-                double xt = Math.abs(previous1.magnitudes[k]) * Math.exp(previous1.phases[k] + previous1.phases[k] - previous2.phases[k]);
-                double x = current.magnitudes[k];
-                double cd = Math.abs(x - xt);
-                rcd += !rectify || (Math.abs(x) >= Math.abs(xt)) ? cd : 0.0;
-            }
-
-            odfValues.add(rcd);
-        }
-
-        peakPicking(2.5);
-    }
-
-    protected void spectralFluxL1() {
-        odfValues.add(0.0);
-
-        for (int frame = 1; frame < audiofile.spectralDataContainer.size(); frame++) {
-            SpectralData previous = audiofile.spectralDataContainer.get(frame - 1);
-            SpectralData current = audiofile.spectralDataContainer.get(frame);
-
-            double df = current.totalEnergy - previous.totalEnergy;
-
-            odfValues.add(df);
+        });
+        for (int n = 0; n < odfValues.size(); n++) {
+            picker.push(odfValues.get(n));
         }
-
-        peakPicking(3);
+        picker.finish();
     }
 
-    protected void spectralFluxL2() {
-        // spectral flux using L^2-norm on rectified distance
-        odfValues.add(0.0);
-
-        for (int frame = 1; frame < audiofile.spectralDataContainer.size(); frame++) {
-            SpectralData previous = audiofile.spectralDataContainer.get(frame - 1);
-            SpectralData current = audiofile.spectralDataContainer.get(frame);
-
-            double sd = 0;
-            for (int k = 0; k < previous.size; k++) {
-                sd += square(H(current.magnitudes[k] - previous.magnitudes[k]));
+    // The onset frames picked from the values of an onset detection function
+    // as by analyzeOnsets, with the given parameters
+    static IntArray pickOnsets(double[] odf, double threshold, int windowMax, int windowMean, int minDelay) {
+        IntArray frames = new IntArray();
+        PeakPicker picker = new PeakPicker(threshold, windowMax, windowMean, n -> {
+            int lastFrame = frames.isEmpty() ? -minDelay : frames.get(frames.size() - 1);
+            if (n - lastFrame > minDelay) {
+                frames.add(n);
             }
-            sd = Math.sqrt(sd);
-
-            odfValues.add(sd);
+        });
+        for (double value : odf) {
+            picker.push(value);
         }
-
-        peakPicking(0.3);
+        picker.finish();
+        return frames;
     }
 
-    protected void highFreqContent() {
-        boolean square = false;
-        odfValues.add(0.0);
-
-        for (int frame = 1; frame < audiofile.spectralDataContainer.size(); frame++) {
-            SpectralData current = audiofile.spectralDataContainer.get(frame);
-
-            double e = 0;
-            for (int k = 0; k < current.size; k++) {
-                double wk = k; // weight = k; not psychoacoustically informed...
-                double xk = current.magnitudes[k];
-                if (square) xk *= xk;
-                e += wk * xk;
-            }
-            e /= current.size;
-
-            odfValues.add(e);
-        }
-
-        peakPicking(0.2);
+    private double thresholdOf(String function) {
+        return Double.isNaN(threshold) ? OnsetDetectionFunctions.get(function).threshold : threshold;
     }
 
     private boolean minDelayExceeded(int frame) {
-        final int minDelay = 5;
         int lastFrame = onsetsFrames.isEmpty() ? -minDelay : onsetsFrames.get(onsetsFrames.size()-1);
         return frame - lastFrame > minDelay;
     }
 
-    private static double square(double x) {
-        return x * x;
-    }
-
-    /**
-     * Rectify, i.e. zero for negative x;
-     */
-    private static double H(double x) {
-        return (x + Math.abs(x)) / 2;
-    }
-
     private void addOnsetAt(int frame) {
         onsetsFrames.add(frame);
         onsets.add(frame * audiofile.hopTime);
     }
 
-    public class SemitoneFilter implements Function<double[], double[]> {
+    // Triangular filter bank with one band per semitone. Each band only
+    // covers a few bins, so only its first bin and its weights are stored
+    // (like a compressed sparse row matrix) and applying the filter costs
+    // O(bins). Filters are immutable and shared, see get().
+    public static class SemitoneFilter implements Function<double[], double[]> {
         private static final int BANDS = 12;
+        private static final ConcurrentHashMap<List<Number>, SemitoneFilter> filters = new ConcurrentHashMap<>();
         private final int bincount;
-        private final double[][] weights;
+        private final int size;
+        // band b covers the bins bandstart[b] ... bandstart[b] + bandweights[b].length - 1
+        private final int[] bandstart;
+        private final double[][] bandweights;
         private final int[] binspans;
 
-        public SemitoneFilter(int fftSize) {
+        // returns the shared filter for the given spectrum size and sample rate
+        public static SemitoneFilter get(int fftSize, float sampleRate) {
+            return filters.computeIfAbsent(Arrays.asList(fftSize, sampleRate), key -> new SemitoneFilter(fftSize, sampleRate));
+        }
+
+        // fftSize is the size of the spectra the filter is applied to (fftSize/2 + 1 of the FFT)
+        public SemitoneFilter(int fftSize, float sampleRate) {
             // calculate semitone frequencies within (lbound, rbound) Hz
             final double lbound = 27.5, rbound = 16000;
             final double a1 = 440; // Hz
@@ -290,15 +298,16 @@ public class OnsetProcessor {
             }
 
             // now that we've got the frequencies, we need to map them to fft bins somehow
-            double halfsamplerate = audiofile.getSampleRate() / 2;
+            double halfsamplerate = sampleRate / 2;
             double fftbinwidth = halfsamplerate / fftSize;
             List<Integer> binmapping = stf.stream().map(f -> (int) (f / fftbinwidth)).distinct().collect(Collectors.toList());
 
             int binedgecount = binmapping.size();
             bincount = binedgecount - 2;
+            size = fftSize;
 
-            weights = new double[fftSize][];
-            Arrays.setAll(weights, i -> new double[bincount]);
+            bandstart = new int[bincount];
+            bandweights = new double[bincount][];
             binspans = new int[bincount];
 
             // calculate triangular weights for each bin
@@ -308,13 +317,17 @@ public class OnsetProcessor {
                 int binend = binmapping.get(i+1);
                 int binspan = binend - binstart;
                 int binindex = i-1;
-                for (int k = binstart; k < binend; k++) {
+                // bins above the nyquist frequency (sample rates below 32 kHz) do not exist
+                double[] w = new double[Math.max(0, Math.min(binend, fftSize) - binstart)];
+                for (int k = binstart; k < binstart + w.length; k++) {
                     double midval = 1.0;
                     double halfbinspan = binspan / 2.0;
                     double w_kb = binmid == k ? midval : midval * Math.abs(halfbinspan - Math.abs(binmid - k)) / halfbinspan;
                     assert w_kb >= 0.0 && w_kb <= midval : w_kb;
-                    weights[k][binindex] = w_kb;
+                    w[k - binstart] = w_kb;
                 }
+                bandstart[binindex] = binstart;
+                bandweights[binindex] = w;
                 binspans[binindex] = binspan;
             }
         }
@@ -325,14 +338,26 @@ public class OnsetProcessor {
 
         @Override
         public double[] apply(double[] magnitudes) {
+            return apply(magnitudes, 0);
+        }
+
+        // same as apply(double[]) for the frame starting at offset (in a Spectrogram)
+        public double[] apply(double[] magnitudes, int offset) {
+            return apply(magnitudes, offset, new double[getBinCount()]);
+        }
+
+        // as above, the result is written into the given array (of at least
+        // getBinCount() values), which is returned
+        public double[] apply(double[] magnitudes, int offset, double[] result) {
             // weighted sum of magnitudes per bin
-            double[] result = new double[getBinCount()];
-            for (int k = 0; k < magnitudes.length; k++) {
-                double mag = magnitudes[k];
-                double[] wk = weights[k];
-                for (int b = 0; b < wk.length; b++) {
-                    result[b] += wk[b] * mag;
+            for (int b = 0; b < bincount; b++) {
+                double[] wb = bandweights[b];
+                int k0 = offset + bandstart[b];
+                double sum = 0;
+                for (int k = 0; k < wb.length; k++) {
+                    sum += wb[k] * magnitudes[k0 + k];
                 }
+                result[b] = sum;
             }
             // normalization skipped
             return result;
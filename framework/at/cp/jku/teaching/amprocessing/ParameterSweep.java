@@ -0,0 +1,385 @@
+/*
+ * ParameterSweep.java
+ *
+ * Evaluates a grid of peak picking and tempo parameters on a corpus against
+ * the ground truth. The spectrogram of each file is computed once (or taken
+ * from the SpectrogramCache) and with it the onset detection function, once
+ * per lambda; the configurations then only pick the peaks and run the tempo
+ * and beat analysis. Files and configurations are processed in parallel.
+ * The configurations are ranked by their mean F-measure, i.e. the mean of
+ * the onset and the beat F-measure (averaged over the files, undefined
+ * values counting as 0).
+ */
+package at.cp.jku.teaching.amprocessing;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+public class ParameterSweep {
+
+    /** A file of the corpus with its ground truth files (null if missing). */
+    public static class Track {
+        final String wavFileName;
+        final String onsetGroundTruthFileName, tempoGroundTruthFileName, beatGroundTruthFileName;
+
+        public Track(String wavFileName, String onsetGroundTruthFileName, String tempoGroundTruthFileName,
+                String beatGroundTruthFileName) {
+            this.wavFileName = wavFileName;
+            this.onsetGroundTruthFileName = onsetGroundTruthFileName;
+            this.tempoGroundTruthFileName = tempoGroundTruthFileName;
+            this.beatGroundTruthFileName = beatGroundTruthFileName;
+        }
+    }
+
+    /** The values of each parameter; all combinations are evaluated. */
+    public static class Grid {
+        // NaN: the threshold of the onset detection function
+        public double[] thresholds = { Double.NaN };
+        public int[] windowMax = { OnsetProcessor.WINDOW_MAX };
+        public int[] windowMean = { OnsetProcessor.WINDOW_MEAN };
+        public int[] minDelay = { OnsetProcessor.MIN_DELAY };
+        // only for logFiltSpecFlux
+        public double[] lambda = { 1 };
+        public int[] bpmMinimum = { 40 };
+        public int[] bpmMaximum = { 230 };
+
+        /**
+         * Parses a grid like "threshold=0.8,1,1.2;windowMax=7,9;lambda=0.5,1",
+         * with the parameters threshold, windowMax, windowMean, minDelay,
+         * lambda, bpmMinimum and bpmMaximum; the others keep their defaults.
+         * @throws IllegalArgumentException if the grid cannot be parsed
+         */
+        public static Grid parse(String spec) {
+            Grid grid = new Grid();
+            for (String part : spec.split(";")) {
+                if (part.trim().isEmpty()) {
+                    continue;
+                }
+                int equals = part.indexOf('=');
+                if (equals < 0) {
+                    throw new IllegalArgumentException("Expected name=values: " + part);
+                }
+                String name = part.substring(0, equals).trim();
+                String[] values = part.substring(equals + 1).split(",");
+                try {
+                    switch (name) {
+                        case "threshold":
+                            grid.thresholds = Arrays.stream(values).mapToDouble(v -> Double.parseDouble(v.trim())).toArray();
+                            break;
+                        case "windowMax":
+                            grid.windowMax = parseInts(values);
+                            break;
+                        case "windowMean":
+                            grid.windowMean = parseInts(values);
+                            break;
+                        case "minDelay":
+                            grid.minDelay = parseInts(values);
+                            break;
+                        case "lambda":
+                            grid.lambda = Arrays.stream(values).mapToDouble(v -> Double.parseDouble(v.trim())).toArray();
+                            break;
+                        case "bpmMinimum":
+                            grid.bpmMinimum = parseInts(values);
+                            break;
+                        case "bpmMaximum":
+                            grid.bpmMaximum = parseInts(values);
+                            break;
+                        default:
+                            throw new IllegalArgumentException("Unknown parameter " + name);
+                    }
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid value of " + name + ": " + e.getMessage());
+                }
+            }
+            return grid;
+        }
+
+        private static int[] parseInts(String[] values) {
+            return Arrays.stream(values).mapToInt(v -> Integer.parseInt(v.trim())).toArray();
+        }
+
+        // the number of combinations of the tempo parameters
+        int tempoCount() {
+            return bpmMinimum.length * bpmMaximum.length;
+        }
+
+        // the number of combinations of the onset parameters
+        int onsetCount() {
+            return lambda.length * thresholds.length * windowMax.length * windowMean.length * minDelay.length;
+        }
+
+        /** The configuration of the given index; the tempo parameters vary fastest. */
+        Configuration configuration(int index) {
+            int t = index % tempoCount();
+            int o = index / tempoCount();
+            int delay = o % minDelay.length;
+            o /= minDelay.length;
+            int mean = o % windowMean.length;
+            o /= windowMean.length;
+            int max = o % windowMax.length;
+            o /= windowMax.length;
+            int threshold = o % thresholds.length;
+            o /= thresholds.length;
+            return new Configuration(o, thresholds[threshold], windowMax[max], windowMean[mean],
+                    minDelay[delay], lambda[o], bpmMinimum[t / bpmMaximum.length], bpmMaximum[t % bpmMaximum.length]);
+        }
+
+        public int size() {
+            return onsetCount() * tempoCount();
+        }
+    }
+
+    /** One combination of the parameters. */
+    public static class Configuration {
+        // the index of lambda in the grid
+        final int lambdaIndex;
+        public final double threshold;
+        public final int windowMax, windowMean, minDelay;
+        public final double lambda;
+        public final int bpmMinimum, bpmMaximum;
+
+        Configuration(int lambdaIndex, double threshold, int windowMax, int windowMean, int minDelay,
+                double lambda, int bpmMinimum, int bpmMaximum) {
+            this.lambdaIndex = lambdaIndex;
+            this.threshold = threshold;
+            this.windowMax = windowMax;
+            this.windowMean = windowMean;
+            this.minDelay = minDelay;
+            this.lambda = lambda;
+            this.bpmMinimum = bpmMinimum;
+            this.bpmMaximum = bpmMaximum;
+        }
+
+        @Override
+        public String toString() {
+            return "threshold=" + threshold + ";windowMax=" + windowMax + ";windowMean=" + windowMean
+                    + ";minDelay=" + minDelay + ";lambda=" + lambda + ";bpmMinimum=" + bpmMinimum
+                    + ";bpmMaximum=" + bpmMaximum;
+        }
+    }
+
+    /** The evaluation of a configuration on the corpus. */
+    public static class Result {
+        public final Configuration configuration;
+        // the means over the files with the ground truth (NaN if there are none)
+        public final double onsetFMeasure, beatFMeasure, tempoAccuracy;
+
+        Result(Configuration configuration, double onsetFMeasure, double beatFMeasure, double tempoAccuracy) {
+            this.configuration = configuration;
+            this.onsetFMeasure = onsetFMeasure;
+            this.beatFMeasure = beatFMeasure;
+            this.tempoAccuracy = tempoAccuracy;
+        }
+
+        /** The mean of the onset and beat F-measures (of those evaluated). */
+        public double meanFMeasure() {
+            if (Double.isNaN(onsetFMeasure)) {
+                return Double.isNaN(beatFMeasure) ? 0 : beatFMeasure;
+            }
+            return Double.isNaN(beatFMeasure) ? onsetFMeasure : (onsetFMeasure + beatFMeasure) / 2;
+        }
+    }
+
+    // the intermediates of a file shared by all configurations
+    private static class Prepared {
+        double hopTime;
+        // the onset detection function for each lambda of the grid
+        double[][] odf;
+        // the merged ground truth (null if missing), the tempo (NaN if missing)
+        double[] onsets, beats;
+        double tempo = Double.NaN;
+    }
+
+    private final List<Track> tracks;
+    private final String function;
+    private final Grid grid;
+    private final double tolerance;
+    private final Processor.Settings settings;
+
+    /**
+     * @param function the onset detection function (see OnsetDetectionFunctions)
+     * @param tolerance the tolerance for matching onsets and beats in seconds
+     * @param settings the settings of the analysis: the spectrogram cache and
+     * the tempo options (estimator, IOI tolerance, tempo executor or threads)
+     * are used, the parameters of the grid replace the peak picking and tempo
+     * range; the tempo executor must not be the one of run()
+     * @throws IllegalArgumentException if lambda is varied for another function than logFiltSpecFlux
+     */
+    public ParameterSweep(List<Track> tracks, String function, Grid grid, double tolerance, Processor.Settings settings) {
+        OnsetDetectionFunctions.get(function);
+        if (!function.equals(OnsetDetectionFunctions.LOG_FILT_SPEC_FLUX)
+                && (grid.lambda.length != 1 || grid.lambda[0] != 1)) {
+            throw new IllegalArgumentException("lambda only applies to " + OnsetDetectionFunctions.LOG_FILT_SPEC_FLUX);
+        }
+        this.tracks = new ArrayList<Track>(tracks);
+        this.function = function;
+        this.grid = grid;
+        this.tolerance = tolerance;
+        this.settings = settings;
+    }
+
+    /**
+     * Evaluates all configurations of the grid on the executor.
+     * @return the results, the best (highest mean F-measure) first
+     */
+    public List<Result> run(ExecutorService executor) {
+        if (executor == settings.tempoExecutor) {
+            // its tasks would wait for the tempo hypotheses queued behind them
+            throw new IllegalArgumentException("the tempo executor cannot run the sweep");
+        }
+        Prepared[] prepared = new Prepared[tracks.size()];
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (int i = 0; i < tracks.size(); i++) {
+            int track = i;
+            tasks.add(() -> {
+                prepared[track] = prepare(tracks.get(track));
+                return null;
+            });
+        }
+        invokeAll(executor, tasks);
+
+        // [configuration][track], NaN where there is no ground truth
+        int configurations = grid.size();
+        double[][] onsetF = new double[configurations][tracks.size()];
+        double[][] beatF = new double[configurations][tracks.size()];
+        double[][] tempoCorrect = new double[configurations][tracks.size()];
+        tasks.clear();
+        for (int o = 0; o < grid.onsetCount(); o++) {
+            for (int i = 0; i < tracks.size(); i++) {
+                int onsetIndex = o, track = i;
+                tasks.add(() -> {
+                    evaluate(prepared[track], onsetIndex, track, onsetF, beatF, tempoCorrect);
+                    return null;
+                });
+            }
+        }
+        invokeAll(executor, tasks);
+
+        List<Result> results = new ArrayList<Result>(configurations);
+        for (int c = 0; c < configurations; c++) {
+            results.add(new Result(grid.configuration(c), mean(onsetF[c]), mean(beatF[c]), mean(tempoCorrect[c])));
+        }
+        // stable, so of equal ones the first of the grid comes first
+        results.sort((a, b) -> Double.compare(b.meanFMeasure(), a.meanFMeasure()));
+        return results;
+    }
+
+    private Prepared prepare(Track track) {
+        Prepared prepared = new Prepared();
+        AudioFile audiofile = new AudioFile(track.wavFileName, 0.046439, 0.01,
+                OnsetProcessor.requiredFeatures(function));
+        if (settings.spectrogramCache != null) {
+            audiofile.processFile(settings.spectrogramCache, null);
+        } else {
+            audiofile.processFile();
+        }
+        prepared.hopTime = audiofile.hopTime;
+
+        Spectrogram spectrogram = audiofile.spectrogram;
+        int size = spectrogram.size();
+        prepared.odf = new double[grid.lambda.length][spectrogram.frames()];
+        for (int l = 0; l < grid.lambda.length; l++) {
+            OnsetDetectionFunction instance = function.equals(OnsetDetectionFunctions.LOG_FILT_SPEC_FLUX)
+                    ? OnsetDetectionFunctions.logFiltSpecFlux(size, audiofile.getSampleRate(), grid.lambda[l])
+                    : OnsetDetectionFunctions.get(function).create(size, audiofile.getSampleRate());
+            for (int frame = 0; frame < spectrogram.frames(); frame++) {
+                prepared.odf[l][frame] = instance.next(spectrogram.magnitudes(), spectrogram.phases(),
+                        spectrogram.offset(frame));
+            }
+        }
+
+        if (track.onsetGroundTruthFileName != null) {
+            prepared.onsets = Runner.readEventGroundTruth(track.onsetGroundTruthFileName);
+        }
+        if (track.beatGroundTruthFileName != null) {
+            prepared.beats = Runner.readEventGroundTruth(track.beatGroundTruthFileName);
+        }
+        if (track.tempoGroundTruthFileName != null) {
+            prepared.tempo = Runner.readTempoGroundTruth(track.tempoGroundTruthFileName);
+        }
+        return prepared;
+    }
+
+    // picks the onsets with the onset parameters of the given index and runs
+    // the tempo analysis for each tempo parameters on them
+    private void evaluate(Prepared prepared, int onsetIndex, int track,
+            double[][] onsetF, double[][] beatF, double[][] tempoCorrect) {
+        int first = onsetIndex * grid.tempoCount();
+        Configuration onsetConfiguration = grid.configuration(first);
+        double threshold = Double.isNaN(onsetConfiguration.threshold)
+                ? OnsetDetectionFunctions.get(function).threshold : onsetConfiguration.threshold;
+        IntArray frames = OnsetProcessor.pickOnsets(prepared.odf[onsetConfiguration.lambdaIndex], threshold,
+                onsetConfiguration.windowMax, onsetConfiguration.windowMean, onsetConfiguration.minDelay);
+        double[] onsets = new double[frames.size()];
+        for (int i = 0; i < onsets.length; i++) {
+            onsets[i] = frames.get(i) * prepared.hopTime;
+        }
+        double onsetFMeasure = prepared.onsets == null ? Double.NaN
+                : definedOrZero(EventEvaluation.evaluate(onsets, prepared.onsets, tolerance)[0].fMeasure());
+
+        for (int c = first; c < first + grid.tempoCount(); c++) {
+            Configuration configuration = grid.configuration(c);
+            onsetF[c][track] = onsetFMeasure;
+            beatF[c][track] = prepared.beats == null ? Double.NaN : 0;
+            tempoCorrect[c][track] = Double.isNaN(prepared.tempo) ? Double.NaN : 0;
+            Processor.Settings rhythmSettings = settings.copy();
+            rhythmSettings.bpmMinimum = configuration.bpmMinimum;
+            rhythmSettings.bpmMaximum = configuration.bpmMaximum;
+            // the same result, only faster
+            rhythmSettings.pruneHypotheses = true;
+            // with too few onsets (no IOI in the tempo range) the tempo is 0
+            // and there are no beats, which scores 0
+            Processor processor = new Processor(onsets, prepared.odf[onsetConfiguration.lambdaIndex],
+                    prepared.hopTime, rhythmSettings);
+            processor.analyzeRhythm();
+            if (prepared.beats != null) {
+                beatF[c][track] = definedOrZero(
+                        EventEvaluation.evaluate(processor.getBeatTimes(), prepared.beats, tolerance)[0].fMeasure());
+            }
+            if (!Double.isNaN(prepared.tempo)) {
+                tempoCorrect[c][track] = Runner.compareTempo(processor.getTempo(), prepared.tempo)[0] ? 1 : 0;
+            }
+        }
+    }
+
+    private static double definedOrZero(double value) {
+        return Double.isNaN(value) ? 0 : value;
+    }
+
+    // the mean of the values which are not NaN, NaN if there are none
+    private static double mean(double[] values) {
+        double sum = 0;
+        int count = 0;
+        for (double value : values) {
+            if (!Double.isNaN(value)) {
+                sum += value;
+                count++;
+            }
+        }
+        return count > 0 ? sum / count : Double.NaN;
+    }
+
+    private static void invokeAll(ExecutorService executor, List<Callable<Void>> tasks) {
+        try {
+            for (Future<Void> future : executor.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted during the parameter sweep", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+}
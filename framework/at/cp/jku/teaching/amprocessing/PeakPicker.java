@@ -0,0 +1,185 @@
+/*
+ * PeakPicker.java
+ *
+ * The peak picking of OnsetProcessor: a frame is a peak if its value of the
+ * onset detection function is the maximum of a window around it and lies at
+ * least threshold above the mean of a (larger) window around it. Near the
+ * beginning and the end of the signal the windows are extended to the other
+ * side, so they always have the same size.
+ *
+ * The values are pushed one at a time and only a bounded ring of recent
+ * values is kept. A frame is decided as soon as its windows are complete,
+ * the last frames when finish() is called. As both ends of the windows only
+ * move forward, the local maximum is maintained with a monotonic deque and
+ * the local mean with a running sum: every frame costs O(1), independent of
+ * the window sizes, and nothing is allocated after construction.
+ *
+ * With a bounded lookahead the windows are shifted into the past so that
+ * they reach at most lookahead frames beyond the frame to be decided (and
+ * are not extended beyond that at the beginning), so every frame is decided
+ * as soon as the value lookahead frames later has been pushed.
+ */
+package at.cp.jku.teaching.amprocessing;
+
+import java.util.function.IntConsumer;
+
+public class PeakPicker {
+
+    /** Receives the local maximum and mean of every decided frame. */
+    public interface LocalStatistics {
+        void accept(int frame, double localMax, double localMean);
+    }
+
+    private final double threshold;
+    private final int w1, w2, w3, w4;
+    // maximum number of frames a window reaches into the future, -1 if unbounded
+    private final int lookahead;
+    private final IntConsumer peaks;
+    private final LocalStatistics statistics;
+
+    // the most recent odf values, value n is stored at n % values.length
+    private final double[] values;
+    // number of values pushed so far (value 0 is a placeholder and never a peak)
+    private int received = 0;
+    // the next frame to be decided
+    private int next = 1;
+
+    // indices of the max window with decreasing values, deque[i % length] for head <= i < tail
+    private final int[] deque;
+    private int head = 0, tail = 0;
+    // last index added to the max window
+    private int maxTo = 0;
+    // the mean window [sumFrom, sumTo] and its sum
+    private int sumFrom = 1, sumTo = 0;
+    private double sum = 0;
+
+    /**
+     * @param threshold the minimum distance of a peak above the local mean
+     * @param windowMax size of the window for the local maximum
+     * @param windowMean size of the window for the local mean
+     * @param peaks receives the frames of the detected peaks in increasing order
+     */
+    public PeakPicker(double threshold, int windowMax, int windowMean, IntConsumer peaks) {
+        this(threshold, windowMax, windowMean, -1, peaks, null);
+    }
+
+    /** As above, statistics (may be null) receives the local maximum and
+     *  mean of every frame. */
+    public PeakPicker(double threshold, int windowMax, int windowMean, IntConsumer peaks,
+            LocalStatistics statistics) {
+        this(threshold, windowMax, windowMean, -1, peaks, statistics);
+    }
+
+    /** As above, with windows reaching at most lookahead (>= 0) frames into
+     *  the future, i.e. a peak is reported at the latest when the value
+     *  lookahead frames after it is pushed (0: causal peak picking). */
+    public PeakPicker(double threshold, int windowMax, int windowMean, int lookahead, IntConsumer peaks) {
+        this(threshold, windowMax, windowMean, lookahead, peaks, null);
+    }
+
+    private PeakPicker(double threshold, int windowMax, int windowMean, int lookahead, IntConsumer peaks,
+            LocalStatistics statistics) {
+        this.threshold = threshold;
+        this.lookahead = lookahead;
+        this.w2 = lookahead < 0 ? windowMax / 2 : Math.min(windowMax / 2, lookahead);
+        this.w1 = 2 * (windowMax / 2) - w2;
+        this.w4 = lookahead < 0 ? windowMean / 2 : Math.min(windowMean / 2, lookahead);
+        this.w3 = 2 * (windowMean / 2) - w4;
+        this.peaks = peaks;
+        this.statistics = statistics;
+        // a window reaches at most w1+w2 (w3+w4) frames to either side of the
+        // frame it belongs to (at the beginning / the end of the file)
+        this.values = new double[2 * Math.max(w1 + w2, w3 + w4) + 2];
+        this.deque = new int[values.length];
+    }
+
+    public void push(double odf) {
+        values[received % values.length] = odf;
+        received++;
+        while (next < received && windowEnd(next, w1, w2) < received && windowEnd(next, w3, w4) < received) {
+            decide(next, Integer.MAX_VALUE);
+            next++;
+        }
+    }
+
+    /** Decides the remaining frames, whose windows are clipped by the end of the signal. */
+    public void finish() {
+        int max = received - 1;
+        while (next <= max) {
+            decide(next, max);
+            next++;
+        }
+    }
+
+    // the last frame of a window as long as the end of the signal is unknown
+    private int windowEnd(int n, int wl, int wr) {
+        int from = Math.max(1, n - wl);
+        return limit(n, n + wr + (from - (n - wl)));
+    }
+
+    private int limit(int n, int to) {
+        return lookahead >= 0 && to - n > lookahead ? n + lookahead : to;
+    }
+
+    private double value(int n) {
+        return values[n % values.length];
+    }
+
+    private void decide(int n, int max) {
+        double odf = value(n);
+
+        int from = windowFrom(n, w1, w2, max), to = limit(n, windowTo(n, w1, w2, max));
+        while (maxTo < to) {
+            maxTo++;
+            double v = value(maxTo);
+            while (tail > head && value(deque[(tail - 1) % deque.length]) <= v) {
+                tail--;
+            }
+            deque[tail++ % deque.length] = maxTo;
+        }
+        while (deque[head % deque.length] < from) {
+            head++;
+        }
+        double localMax = value(deque[head % deque.length]);
+
+        from = windowFrom(n, w3, w4, max);
+        to = limit(n, windowTo(n, w3, w4, max));
+        while (sumTo < to) {
+            sum += value(++sumTo);
+        }
+        while (sumFrom < from) {
+            sum -= value(sumFrom++);
+        }
+        double localMean = sum / (to - from + 1);
+
+        if (statistics != null) {
+            statistics.accept(n, localMax, localMean);
+        }
+        if (odf != localMax) {
+            return;
+        }
+        if (odf < localMean + threshold) {
+            return;
+        }
+        peaks.accept(n);
+    }
+
+    // if we don't have enough frames on one side to fill half of the window, extend the window to the other side
+    private static int windowFrom(int n, int wl, int wr, int max) {
+        int from = Math.max(1, n - wl);
+        int to = Math.min(max, n + wr);
+        if (from <= n - wl && to < n + wr) {
+            from = Math.max(1, from - ((n + wr) - to));
+        }
+        return from;
+    }
+
+    private static int windowTo(int n, int wl, int wr, int max) {
+        int from = Math.max(1, n - wl);
+        int to = Math.min(max, n + wr);
+        if (from > n - wl) {
+            to = Math.min(max, to + (from - (n - wl)));
+        }
+        return to;
+    }
+}
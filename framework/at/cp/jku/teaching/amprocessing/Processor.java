@@ -19,6 +19,12 @@ import java.util.Map;
 import java.util.Set;
 import java.util.StringTokenizer;
 import java.util.Vector;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Predicate;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -31,37 +37,113 @@ import sun.security.util.Length;
  */
 public class Processor {
 
+	/** Tempo estimation by TempoHypothesis agents on the onsets (default) */
+	public static final int TEMPO_AGENTS = 0;
+	/** Tempo estimation by autocorrelation of the onset detection function */
+	public static final int TEMPO_AUTOCORRELATION = 1;
+
+	// Options of the analysis which are not part of the algorithm itself
+	public static class Settings implements Cloneable {
+		// if true the STFT is not stored but streamed through the onset detection
+		public boolean streaming = false;
+		// number of threads for the STFT (1: sequential, 0: all processors);
+		// ignored in streaming mode
+		public int stftThreads = 1;
+		// names of the onset detection functions (see OnsetDetectionFunctions),
+		// computed in one pass; the onsets are picked from the first one
+		public String[] onsetFunctions = { OnsetDetectionFunctions.DEFAULT };
+		// number of threads for processing the tempo hypotheses (1: sequential,
+		// 0: all processors)
+		public int tempoThreads = 1;
+		// if set, the tempo hypotheses are processed on this executor instead
+		// (it is not shut down by the Processor)
+		public ExecutorService tempoExecutor = null;
+		// number of neighbouring 10ms bins merged into an IOI cluster on each
+		// side (0: only identical IOIs are counted together)
+		public int ioiTolerance = 0;
+		// TEMPO_AGENTS or TEMPO_AUTOCORRELATION
+		public int tempoEstimator = TEMPO_AGENTS;
+		// if true a tempo hypothesis is abandoned as soon as it cannot beat
+		// the best score found so far (the selected tempo is the same)
+		public boolean pruneHypotheses = false;
+		// if set, the spectrogram is taken from (or stored in) this cache;
+		// ignored in streaming mode
+		public SpectrogramCache spectrogramCache = null;
+		// the parameters of the peak picking: the threshold (NaN: the one of
+		// the onset detection function), the window sizes in frames and the
+		// minimum distance of two onsets in frames
+		public double threshold = Double.NaN;
+		public int windowMax = OnsetProcessor.WINDOW_MAX;
+		public int windowMean = OnsetProcessor.WINDOW_MEAN;
+		public int minDelay = OnsetProcessor.MIN_DELAY;
+		// the range of the tempo in bpm
+		public int bpmMinimum = 40;
+		public int bpmMaximum = 230;
+
+		// a copy of these settings (with its own onsetFunctions array)
+		Settings copy() {
+			try {
+				Settings copy = (Settings) super.clone();
+				copy.onsetFunctions = onsetFunctions.clone();
+				return copy;
+			} catch (CloneNotSupportedException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	}
+
 	private AudioFile audiofile;
+	private OnsetProcessor onsetProcessor;
 	// this List should contain your results of the onset detection step (onset
 	// times in seconds)
-	private List<Double> onsets;
+	private DoubleArray onsets;
 	// this may contain your intermediate results (in frames, before conversion
 	// to time in seconds)
-	private List<Integer> onsetsFrames;
+	private IntArray onsetsFrames;
 	// this variable should contain your result of the tempo estimation
 	// algorithm
 	private double tempo;
-    // TempoHypothesis with highest score (also needed for beats analysis)
+    // TempoHypothesis with highest score
 	private TempoHypothesis tempoHypothesisWithMaxScore;
+	// the tempo candidates of the autocorrelation, strongest first (empty for the agents)
+	private List<AutocorrelationTempo.Candidate> tempoCandidates = new ArrayList<AutocorrelationTempo.Candidate>();
 	// this List should contain your results of the beat detection step (beat
 	// times in seconds)
-	private List<Double> beats;
+	private DoubleArray beats;
 	// this may contain your intermediate beat results (in frames, before
 	// conversion to time in seconds)
-	private List<Integer> beatsFrames;
+	private IntArray beatsFrames;
 	// min and max tempo to be considered
 	private int bpmMinimum, bpmMaximum;
+	private Settings settings;
+	// executor for the tempo hypotheses during analyze(), null if sequential
+	private ExecutorService hypothesisExecutor;
+	// without an audio file: the onset detection function for the
+	// autocorrelation tempo and its hop time (null if not given)
+	private double[] odf;
+	private double odfHopTime;
 
 	// original onsets (currently from the groundtruth file)
-	LinkedList<Double> detectedOnsets = new LinkedList<Double>();
+	DoubleArray detectedOnsets = new DoubleArray();
+	// the detected onsets in ms, shared by all TempoHypothesis objects
+	private OnsetIndex onsetIndex;
+	// the costs of the stages of the analysis
+	private final StageMetrics metrics;
 
 	public Processor(String filename) {
+		this(filename, new Settings());
+	}
+
+	public Processor(String filename, Settings settings) {
 		System.out.println("Initializing Processor...");
 
-		this.onsets = new LinkedList<Double>();
-		this.onsetsFrames = new LinkedList<Integer>();
-		this.beats = new LinkedList<Double>();
-		this.beatsFrames = new LinkedList<Integer>();
+		this.settings = settings;
+		this.metrics = new StageMetrics(filename);
+
+		this.onsets = new DoubleArray();
+		this.onsetsFrames = new IntArray();
+		this.beats = new DoubleArray();
+		this.beatsFrames = new IntArray();
 
 		System.out.println("Reading Audio-File " + filename);
 		System.out.println("Performing FFT...");
@@ -73,9 +155,57 @@ public class Processor {
 		// an FFT with size 2048 points
 		// Note that the value is not taken to be precise; it is adjusted so
 		// that the FFT Size is always power of 2.
-		this.audiofile = new AudioFile(filename, 0.046439, 0.01);
+		// only the data needed by the onset detection function is computed
+		this.audiofile = new AudioFile(filename, 0.046439, 0.01, OnsetProcessor.requiredFeatures(settings.onsetFunctions));
+		metrics.setAudioSeconds(audiofile.getDuration());
 		// this starts the extraction of the basis features (the STFT)
-		this.audiofile.processFile();
+		// in streaming mode this happens during the onset analysis
+		if (settings.streaming) {
+			return;
+		}
+		StageMetrics.Timer timer = metrics.start(StageMetrics.Stage.STFT);
+		ForkJoinPool pool = null;
+		if (settings.stftThreads != 1) {
+			int threads = settings.stftThreads > 0 ? settings.stftThreads : Runtime.getRuntime().availableProcessors();
+			pool = new ForkJoinPool(threads);
+		}
+		try {
+			if (settings.spectrogramCache != null) {
+				this.audiofile.processFile(settings.spectrogramCache, pool);
+			} else if (pool == null) {
+				this.audiofile.processFile();
+			} else {
+				this.audiofile.processFile(pool);
+			}
+		} finally {
+			if (pool != null) {
+				pool.shutdown();
+			}
+			timer.stop();
+		}
+	}
+
+	// A Processor for the tempo and beats of the given onsets (in seconds),
+	// without an audio file: only analyzeRhythm() can be called
+	Processor(double[] onsetTimes, Settings settings) {
+		this(onsetTimes, null, 0, settings);
+	}
+
+	// as above, with the onset detection function (one value every hopTime
+	// seconds) for the autocorrelation tempo
+	Processor(double[] onsetTimes, double[] odf, double hopTime, Settings settings) {
+		this.settings = settings;
+		this.odf = odf;
+		this.odfHopTime = hopTime;
+		this.metrics = new StageMetrics(null);
+
+		this.onsets = new DoubleArray();
+		this.onsetsFrames = new IntArray();
+		this.beats = new DoubleArray();
+		this.beatsFrames = new IntArray();
+		for (double time : onsetTimes) {
+			this.onsets.add(time);
+		}
 	}
 
 	// This method is called from the Runner and is the starting point of your
@@ -87,56 +217,103 @@ public class Processor {
 
 		analyzeOnsets();
 
-		analyzeTempo();
-
-		analyzeBeats();
-
-
+		analyzeRhythm();
+	}
 
+	// The tempo and beat analysis of the onsets
+	void analyzeRhythm() {
+		ExecutorService pool = null;
+		if (settings.tempoExecutor == null && settings.tempoThreads != 1) {
+			int threads = settings.tempoThreads > 0 ? settings.tempoThreads : Runtime.getRuntime().availableProcessors();
+			pool = Executors.newFixedThreadPool(threads);
+		}
+		hypothesisExecutor = pool != null ? pool : settings.tempoExecutor;
+		try {
+			analyzeTempo();
+
+			StageMetrics.Timer timer = metrics.start(StageMetrics.Stage.BEAT_TRACKING);
+			try {
+				analyzeBeats();
+			} finally {
+				timer.stop();
+			}
+		} finally {
+			hypothesisExecutor = null;
+			if (pool != null) {
+				pool.shutdown();
+			}
+		}
 	}
 
 	private void analyzeTempo() {
 
 		System.out.println("Starting Tempo Analysis...");
 
-		bpmMinimum = 40;
-		bpmMaximum = 230;
+		bpmMinimum = settings.bpmMinimum;
+		bpmMaximum = settings.bpmMaximum;
+
+        detectedOnsets.addAll(onsets);
+        // not copied, detectedOnsets is not changed any more
+        double[] onsetTimes = detectedOnsets.values();
+        int onsetCount = detectedOnsets.size();
+        onsetIndex = new OnsetIndex(onsetTimes, onsetCount);
+
+        if (settings.tempoEstimator == TEMPO_AUTOCORRELATION) {
+        	boolean estimated;
+        	StageMetrics.Timer timer = metrics.start(StageMetrics.Stage.TEMPO);
+        	try {
+        		estimated = analyzeTempoAutocorrelation();
+        	} finally {
+        		timer.stop();
+        	}
+        	if (estimated) {
+        		return;
+        	}
+        }
+
+        IntArray potentialIOIsForTempoHypothesis;
+        StageMetrics.Timer timer = metrics.start(StageMetrics.Stage.IOI_CLUSTERING);
+        try {
+        	potentialIOIsForTempoHypothesis = clusterIOIs(onsetTimes, onsetCount);
+        } finally {
+        	timer.stop();
+        }
+        timer = metrics.start(StageMetrics.Stage.TEMPO);
+        try {
+        	analyzeTempoHypotheses(potentialIOIsForTempoHypothesis, onsetCount);
+        } finally {
+        	timer.stop();
+        }
+	}
 
+	// The potential IOIs in ms for TempoHypothesises: the most frequent IOIs
+	// of the first onsetCount onsets within the tempo range with their multiples
+	private IntArray clusterIOIs(double[] onsetTimes, int onsetCount) {
 
 		// IOIs (rounded to nearest 10ms) in ms
-        LinkedList<Integer> detectedOnsetsIOIs = new LinkedList<Integer>();
+        IntArray detectedOnsetsIOIs = new IntArray();
 
-        // IOIs filtered by bpmMaximum and pbmMinimum in ms
-        LinkedList<Integer> detectedOnsetsIOIsFiltered = new LinkedList<Integer>();
+        // Histogram of the IOIs between bpmMaximum/2 and pbmMinimum in 10ms bins
+        IOIHistogram detectedOnsetsIOIHistogram;
 
         // List of most frequent IOIs in ms with their number of occurrences
         ArrayList<int[]> mostFrequentIOIs = new ArrayList<int[]>();
 
 		// List of all potential IOIs in ms for TempoHypothesises
-        ArrayList<Integer> potentialIOIsForTempoHypothesis = new ArrayList<Integer>();
-        
-        // Lenght of OnsetList
-        int lenghtOfOnsets;
-
-        // Score of TempoHypothesis with highest score
-        int tempoHypothesisWithMaxScoreInPoints;
-        
-        for (double onset : onsets) {
-        	detectedOnsets.add(onset);
-        }
-        
-        lenghtOfOnsets = detectedOnsets.size();
+        IntArray potentialIOIsForTempoHypothesis = new IntArray();
 
-        for (int i =1; i < detectedOnsets.size(); i++) {
-        	int ioi = (int)Math.round((detectedOnsets.get(i)-detectedOnsets.get(i-1))*100)*10;
+        for (int i =1; i < onsetCount; i++) {
+        	int ioi = (int)Math.round((onsetTimes[i]-onsetTimes[i-1])*100)*10;
         	detectedOnsetsIOIs.add(ioi);
         }
 
         // Filtering the Onset IOIs by BPM Min & Max
-        detectedOnsetsIOIsFiltered = filterLinkedList(detectedOnsetsIOIs, ((60*1000)/bpmMaximum)/2, (60*1000)/bpmMinimum);
+        detectedOnsetsIOIHistogram = new IOIHistogram(10, ((60*1000)/bpmMaximum)/2, (60*1000)/bpmMinimum);
+        detectedOnsetsIOIHistogram.addAll(detectedOnsetsIOIs);
 
         // Get the most frequent IOIs
-        mostFrequentIOIs = calculateMostFrequentOccurrences(detectedOnsetsIOIsFiltered, 5);
+        mostFrequentIOIs = detectedOnsetsIOIHistogram.mostFrequent(5, settings.ioiTolerance);
+        mostFrequentIOIs.removeIf(element -> element[0] == 0);
 
         // Collecting potential IOIs with their multiples
         for (int[] ioi : mostFrequentIOIs) {
@@ -146,27 +323,50 @@ public class Processor {
         	potentialIOIsForTempoHypothesis.addAll(getMultiples(ioi[0],((60*1000)/bpmMaximum), (60*1000)/bpmMinimum));
         }
         potentialIOIsForTempoHypothesis.removeIf(ioi -> ioi == 0);
-        
-        
+        return potentialIOIsForTempoHypothesis;
+	}
+
+	// The tempo of the TempoHypothesis with the highest score
+	private void analyzeTempoHypotheses(IntArray potentialIOIsForTempoHypothesis, int lenghtOfOnsets) {
+
+        // Score of TempoHypothesis with highest score
+        int tempoHypothesisWithMaxScoreInPoints;
 
         // Generating TempoHypothesises from potential IOIs with startIndex from 0 to 7
+        // (a repeated IOI gives the same hypotheses again, which can never be
+        // selected as only the first one of equal scores is)
         ArrayList<TempoHypothesis> tempoHypothesisContainer = new ArrayList<TempoHypothesis>();
-        for (int potentialIOI : potentialIOIsForTempoHypothesis) {
+        HashSet<Integer> generatedIOIs = new HashSet<Integer>();
+        for (int j = 0; j < potentialIOIsForTempoHypothesis.size(); j++) {
+        	int potentialIOI = potentialIOIsForTempoHypothesis.get(j);
+        	if (settings.pruneHypotheses && !generatedIOIs.add(potentialIOI)) {
+        		continue;
+        	}
         	for (int i = 0; i < 8 && i < lenghtOfOnsets; i++) {
-        		tempoHypothesisContainer.add(new TempoHypothesis(detectedOnsets, potentialIOI, i));
+        		tempoHypothesisContainer.add(new TempoHypothesis(onsetIndex, potentialIOI, i));
         	}
         }
 
-        // Processing all TempoHypothesises
-        for (TempoHypothesis currentHypothesis : tempoHypothesisContainer) {
-        	currentHypothesis.process();
+        // No IOI within the tempo range (e.g. too few onsets): no tempo, and
+        // analyzeBeats finds no beats
+        if (tempoHypothesisContainer.isEmpty()) {
+        	tempoHypothesisWithMaxScore = null;
+        	tempo = 0;
+        	return;
         }
 
+        // Processing all TempoHypothesises; when pruning, the abandoned ones
+        // end below the best final score, so they cannot be the one selected
+        processHypotheses(tempoHypothesisContainer, settings.pruneHypotheses);
+
         // Finding TempoHypothesis with highest Score
         tempoHypothesisWithMaxScore         = tempoHypothesisContainer.get(0);
         tempoHypothesisWithMaxScoreInPoints = 0;
         for (int i = 0; i < tempoHypothesisContainer.size(); i++) {
         	TempoHypothesis currentHypothesis = tempoHypothesisContainer.get(i);
+        	if (currentHypothesis.isAbandoned()) {
+        		continue;
+        	}
         	if (currentHypothesis.getScore() > tempoHypothesisWithMaxScoreInPoints) {
         		tempoHypothesisWithMaxScore		    = currentHypothesis;
         		tempoHypothesisWithMaxScoreInPoints = currentHypothesis.getScore();
@@ -176,21 +376,44 @@ public class Processor {
         tempo = tempoHypothesisWithMaxScore.getTempo();
 	}
 
+	// The tempo of the strongest periodicity of the onset detection function,
+	// independent of the number of onsets. Returns false (and the agents are
+	// used) if there is no peak within the tempo range or no function.
+	private boolean analyzeTempoAutocorrelation() {
+		if (onsetProcessor != null) {
+			DoubleArray values = onsetProcessor.odfValues(settings.onsetFunctions[0]);
+			tempoCandidates = AutocorrelationTempo.estimate(values.values(), values.size(), audiofile.hopTime,
+					bpmMinimum, bpmMaximum);
+		} else if (odf != null) {
+			tempoCandidates = AutocorrelationTempo.estimate(odf, odfHopTime, bpmMinimum, bpmMaximum);
+		} else {
+			return false;
+		}
+		if (tempoCandidates.isEmpty()) {
+			return false;
+		}
+		tempo = tempoCandidates.get(0).bpm;
+		return true;
+	}
+
 	private void analyzeBeats() {
 
 		ArrayList<TempoHypothesis> tempoHypothesisContainer = new ArrayList<TempoHypothesis>();
 
 		System.out.println("Starting Beats Analysis...");
 		beats.clear();
+		if (tempo <= 0) {
+			return;
+		}
 
 		TempoHypothesis tempoHypothesisForBeats = null;
 		int minMissedOnsets = 99999;
 
-		for (int i = 0; i < 7 && i < detectedOnsets.size()-1; i++) {
-			tempoHypothesisContainer.add(new TempoHypothesis(detectedOnsets, (60/(tempoHypothesisWithMaxScore.getTempo())*1000), i));
+		for (int i = 0; i < 7 && i < onsetIndex.size()-1; i++) {
+			tempoHypothesisContainer.add(new TempoHypothesis(onsetIndex, (60/tempo*1000), i));
 		}
 		
-		tempoHypothesisContainer.forEach(hypothesis -> hypothesis.process());
+		processHypotheses(tempoHypothesisContainer);
 		
 		tempoHypothesisContainer.removeIf(hypothesis -> hypothesis.getBeats().isEmpty());
 		
@@ -201,65 +424,83 @@ public class Processor {
 			}
 		}
 
-		for (double beatTime : tempoHypothesisForBeats.getBeats()) {
-			//System.out.println(beatTime/1000);
-			beats.add(beatTime/1000);
+		if (tempoHypothesisForBeats == null) {
+			return;
+		}
+		DoubleArray beatTimes = tempoHypothesisForBeats.getBeats();
+		for (int i = 0; i < beatTimes.size(); i++) {
+			//System.out.println(beatTimes.get(i)/1000);
+			beats.add(beatTimes.get(i)/1000);
 		}
 	}
 
 	private void analyzeOnsets() {
-		new OnsetProcessor(audiofile, onsets, onsetsFrames).analyzeOnsets();
+		onsetProcessor = new OnsetProcessor(audiofile, onsets, onsetsFrames);
+		onsetProcessor.setPeakPicking(settings.threshold, settings.windowMax, settings.windowMean, settings.minDelay);
+		onsetProcessor.setMetrics(metrics);
+		if (settings.streaming) {
+			onsetProcessor.analyzeOnsetsStreaming(settings.onsetFunctions);
+			return;
+		}
+		onsetProcessor.analyzeOnsets(settings.onsetFunctions);
 	}
 
 
-    private static int[] calculateMostFrequentOccurrences(LinkedList<Integer> inputList) {
-    	int[] mostFrequentElement = {0,0};
-
-    	for (int element : inputList) {
-    		int tempCount = 0;
-
-    		for (int i = 0; i < inputList.size(); i++) {
-    			if (inputList.get(i) == element) {
-    				tempCount += 1;
-    			}
-    		}
-
-    		if (tempCount > mostFrequentElement[1]) {
-    			mostFrequentElement[0] = element;
-    			mostFrequentElement[1] = tempCount;
-    		}
-    	}
-    	return mostFrequentElement;
-    }
-
-    private static ArrayList<int[]> calculateMostFrequentOccurrences(LinkedList<Integer> inputList, int numberOfMostFrequentElements) {
-    	ArrayList<int[]> listToReturn 			= new ArrayList<int[]>();
-    	LinkedList<Integer> tempCopyOfInputList = new LinkedList<Integer>();
-    	for (Integer element : inputList) {
-    		tempCopyOfInputList.add(element);
-    	}
-
-    	for (int i = 0; i < numberOfMostFrequentElements; i++) {
-    		int[] mostFrequentElement = calculateMostFrequentOccurrences(tempCopyOfInputList);
-    		listToReturn.add(mostFrequentElement);
-    		tempCopyOfInputList.removeIf(element -> element == mostFrequentElement[0]);
-    	}
-    	listToReturn.removeIf(element -> element[0] == 0);
-    	return listToReturn;
-    }
-
-
-	private static LinkedList<Integer> filterLinkedList(LinkedList<Integer> inputList, int minimum, int maximum) {
-		LinkedList<Integer> listToReturn = new LinkedList<Integer>();
-		for (int element : inputList) {
-			listToReturn.add(element);
+	// Processes the hypotheses, concurrently if an executor is configured. The
+	// hypotheses are independent of each other and are evaluated afterwards in
+	// the order of the list, so the result is the same as sequentially.
+	private void processHypotheses(List<TempoHypothesis> hypotheses) {
+		processHypotheses(hypotheses, false);
+	}
+
+	// If prune, each hypothesis is abandoned once it cannot beat the best
+	// final score of those completed so far (in any order).
+	private void processHypotheses(List<TempoHypothesis> hypotheses, boolean prune) {
+		AtomicInteger bestScore = new AtomicInteger(Integer.MIN_VALUE);
+		Runnable[] tasks = new Runnable[hypotheses.size()];
+		for (int i = 0; i < tasks.length; i++) {
+			TempoHypothesis hypothesis = hypotheses.get(i);
+			tasks[i] = !prune ? hypothesis::process : () -> {
+				if (hypothesis.process(bestScore::get)) {
+					bestScore.accumulateAndGet(hypothesis.getScore(), Math::max);
+				}
+			};
+		}
+		if (hypothesisExecutor == null || hypotheses.size() < 2) {
+			for (Runnable task : tasks) {
+				task.run();
+			}
+			return;
+		}
+		List<Future<?>> futures = new ArrayList<Future<?>>(hypotheses.size());
+		try {
+			for (Runnable task : tasks) {
+				futures.add(hypothesisExecutor.submit(task));
+			}
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while processing the tempo hypotheses", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			if (e.getCause() instanceof Error) {
+				throw (Error) e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		} finally {
+			// nothing is left running if one of them failed
+			for (Future<?> future : futures) {
+				future.cancel(true);
+			}
 		}
-		listToReturn.removeIf(element -> element < minimum || element > maximum);
-		return listToReturn;
 	}
 
-	private ArrayList<Integer> getMultiples(int input, int min, int max) {
-		ArrayList<Integer> arrayToReturn = new ArrayList<Integer>();
+	private IntArray getMultiples(int input, int min, int max) {
+		IntArray arrayToReturn = new IntArray();
 
 		for (int i = 2; input/i > min; i++) {
 			if (input/i < max && input/i > min) { arrayToReturn.add(input/i); }
@@ -273,15 +514,40 @@ public class Processor {
 	}
 
 
+	// the List getters are read-only views of the results, the array getters
+	// return copies (deliberately, the caller may change them)
 	public List<Double> getOnsets() {
-		return onsets;
+		return onsets.asList();
+	}
+
+	public double[] getOnsetTimes() {
+		return onsets.toArray();
+	}
+
+	// the values of an onset detection function selected in the Settings (in
+	// streaming mode only the first one is computed, null for the others)
+	public double[] getOdfValues(String function) {
+		return onsetProcessor != null ? onsetProcessor.getOdfValues(function) : null;
 	}
 
 	public double getTempo() {
 		return tempo;
 	}
 
+	public List<AutocorrelationTempo.Candidate> getTempoCandidates() {
+		return tempoCandidates;
+	}
+
+	// the costs of the stages run so far
+	public StageMetrics getMetrics() {
+		return metrics;
+	}
+
 	public List<Double> getBeats() {
-		return beats;
+		return beats.asList();
+	}
+
+	public double[] getBeatTimes() {
+		return beats.toArray();
 	}
 }
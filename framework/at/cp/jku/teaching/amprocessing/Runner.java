@@ -11,10 +11,18 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -33,27 +41,40 @@ public class Runner {
      * -o ONSETGROUNDTRUTHFILE (the file including the onset groundtruth, optional!)
      * -t TEMPOGROUNDTRUTHFILE (the file including the tempo groundtruth, optional!)
      * -b BEATGROUNDTRUTHFILE (the file including the beat groundtruth, optional!)
+     * -s (streaming mode: the STFT is not stored, memory stays constant, optional!)
+     * -p THREADS (compute the STFT in parallel, 0 = all processors, ignored in batch mode, optional!)
+     * -j THREADS (process the tempo hypotheses in parallel, 0 = all processors, ignored in batch mode, optional!)
+     * -a (estimate the tempo by autocorrelation of the onset detection function, optional!)
+     * -e (abandon tempo hypotheses which cannot win any more, same result, optional!)
+     * -f FUNCTIONS (comma separated names of the onset detection functions, the onsets are
+     *    taken from the first one, default logFiltSpecFlux, optional!)
+     * -m DIRECTORY|MANIFEST (batch mode instead of -i: analyze all .wav files of the directory,
+     *    or those listed in the manifest, in one JVM; see readJobs; the names of the files
+     *    (without directory and extension) must be distinct, optional!)
+     * -n THREADS (number of files analyzed at the same time in batch mode, default all processors, optional!)
+     * -c DIR (cache the spectrograms in this directory, a warm run skips decoding and FFT, optional!)
+     * -z MEGABYTES (the maximum size of the spectrogram cache, default 1024, optional!)
+     * -r (remove stale entries from the spectrogram cache first, optional!)
+     * -g GRID (with -m: instead of the batch, evaluate all combinations of the given parameter values
+     *    on the files, e.g. "threshold=0.8,1,1.2;windowMax=7,9;bpmMinimum=40,60", and write them ranked
+     *    by mean F-measure to sweep.txt; see ParameterSweep.Grid, optional!)
+     * -w TOLERANCES (comma separated tolerances in seconds for matching onsets and beats, the .eval
+     *    files are written for the first one, all are in the corpus report of a batch, default 0.05, optional!)
+     * -x (write the wall time, CPU time and allocation of each stage and the realtime factor to
+     *    WAVFILENAME.metrics.json, and their percentiles over a batch to corpus.metrics.json, optional!)
      *
      */
     public static void main(String[] args) {
-        String wavFileName = new String();
-        String shortWavFileName = new String();
         String outputDirectory = new String();
-        String outputOnsetsFileName = new String();
-        String outputTempoFileName = new String();
-        String outputBeatsFileName = new String();
-        String onsetGroundTruthFileName = new String();
-        String tempoGroundTruthFileName = new String();
-        String beatGroundTruthFileName = new String();
-        boolean hasOnsetGroundTruth = false;
-        boolean hasTempoGroundTruth = false;
-        boolean hasBeatGroundTruth = false;
-
-        OptionParser parser = new OptionParser("i:d:o:t:b:");
+        Processor.Settings settings = new Processor.Settings();
+        double[] tolerances = { 0.05 };
+        boolean writeMetrics = false;
+
+        OptionParser parser = new OptionParser("i:d:o:t:b:sp:f:j:aem:n:w:c:z:rg:x");
         OptionSet options = parser.parse(args);
 
-        if (!options.has("i")) {
-            System.out.println("Inputfile required! (-i INPUTFILE)");
+        if (!options.has("i") && !options.has("m")) {
+            System.out.println("Inputfile required! (-i INPUTFILE or -m DIRECTORY/MANIFEST)");
             System.exit(1);
         }
 
@@ -62,7 +83,6 @@ public class Runner {
             System.exit(1);
         }
 
-        wavFileName = options.valueOf("i").toString();
         outputDirectory = options.valueOf("d").toString();
 
         System.out.println(outputDirectory);
@@ -77,28 +97,155 @@ public class Runner {
             outputDirectory = outputDirectory + "/";
         }
 
-        shortWavFileName = wavFileName.substring(wavFileName.lastIndexOf("/") + 1, wavFileName.lastIndexOf("."));
-        outputOnsetsFileName = outputDirectory + shortWavFileName + ".onsets";
-        outputTempoFileName = outputDirectory + shortWavFileName + ".bpms";
-        outputBeatsFileName = outputDirectory + shortWavFileName + ".beats";
+        if (options.has("s")) {
+            settings.streaming = true;
+        }
 
-        if (options.has("o")) {
-            onsetGroundTruthFileName = options.valueOf("o").toString();
-            hasOnsetGroundTruth = true;
+        if (options.has("p")) {
+            settings.stftThreads = Integer.parseInt(options.valueOf("p").toString());
         }
 
-        if (options.has("t")) {
-            tempoGroundTruthFileName = options.valueOf("t").toString();
-            hasTempoGroundTruth = true;
+        if (options.has("j")) {
+            settings.tempoThreads = Integer.parseInt(options.valueOf("j").toString());
+        }
+
+        if (options.has("a")) {
+            settings.tempoEstimator = Processor.TEMPO_AUTOCORRELATION;
+        }
+
+        if (options.has("e")) {
+            settings.pruneHypotheses = true;
+        }
+
+        if (options.has("f")) {
+            settings.onsetFunctions = options.valueOf("f").toString().split(",");
+            for (String function : settings.onsetFunctions) {
+                if (!OnsetDetectionFunctions.names().contains(function)) {
+                    System.out.println("Unknown onset detection function " + function + "! (available: "
+                            + String.join(",", OnsetDetectionFunctions.names()) + ")");
+                    System.exit(1);
+                }
+            }
         }
 
+        if (options.has("c")) {
+            long megabytes = 1024;
+            if (options.has("z")) {
+                megabytes = Long.parseLong(options.valueOf("z").toString());
+            }
+            try {
+                settings.spectrogramCache = new SpectrogramCache(new File(options.valueOf("c").toString()),
+                        megabytes * 1024 * 1024);
+            } catch (IOException ex) {
+                System.out.println("Cannot create the spectrogram cache: " + ex.getMessage());
+                System.exit(1);
+            }
+            if (options.has("r")) {
+                System.out.println("Removed " + settings.spectrogramCache.removeStale() + " stale cache entries");
+            }
+        }
+
+        if (options.has("w")) {
+            String[] values = options.valueOf("w").toString().split(",");
+            tolerances = new double[values.length];
+            for (int i = 0; i < values.length; i++) {
+                tolerances[i] = Double.parseDouble(values[i]);
+            }
+        }
+
+        if (options.has("x")) {
+            writeMetrics = true;
+        }
+
+        if (options.has("m")) {
+            int threads = Runtime.getRuntime().availableProcessors();
+            if (options.has("n") && Integer.parseInt(options.valueOf("n").toString()) > 0) {
+                threads = Integer.parseInt(options.valueOf("n").toString());
+            }
+            List<Job> jobs = null;
+            try {
+                jobs = readJobs(new File(options.valueOf("m").toString()));
+            } catch (IOException ex) {
+                System.out.println("Cannot read " + options.valueOf("m") + ": " + ex.getMessage());
+                System.exit(1);
+            }
+            // the files are analyzed in parallel, threads per file would
+            // only oversubscribe the processors
+            if (settings.stftThreads != 1 || settings.tempoThreads != 1) {
+                System.out.println("Ignoring -p and -j in batch mode (use -n)");
+                settings.stftThreads = 1;
+                settings.tempoThreads = 1;
+            }
+            if (options.has("g")) {
+                runSweep(jobs, options.valueOf("g").toString(), outputDirectory, settings, threads, tolerances[0]);
+                return;
+            }
+            String duplicate = duplicateOutputName(jobs);
+            if (duplicate != null) {
+                System.out.println("More than one file named " + duplicate
+                        + " in the batch, their results would overwrite each other!");
+                System.exit(1);
+            }
+            if (!runBatch(jobs, outputDirectory, settings, threads, tolerances, writeMetrics)) {
+                System.exit(1);
+            }
+            return;
+        }
+
+        Job job = new Job(options.valueOf("i").toString());
+        if (options.has("o")) {
+            job.onsetGroundTruthFileName = options.valueOf("o").toString();
+        }
+        if (options.has("t")) {
+            job.tempoGroundTruthFileName = options.valueOf("t").toString();
+        }
         if (options.has("b")) {
-            beatGroundTruthFileName = options.valueOf("b").toString();
-            hasBeatGroundTruth = true;
+            job.beatGroundTruthFileName = options.valueOf("b").toString();
         }
+        run(job, outputDirectory, settings, tolerances, writeMetrics);
+    }
 
-        Processor p = new Processor(wavFileName);
-        p.analyze(onsetGroundTruthFileName);
+    /*
+     * A file to analyze with its (optional, null if missing) ground truth files
+     */
+    private static class Job {
+        final String wavFileName;
+        String onsetGroundTruthFileName = null;
+        String tempoGroundTruthFileName = null;
+        String beatGroundTruthFileName = null;
+
+        Job(String wavFileName) {
+            this.wavFileName = wavFileName;
+        }
+    }
+
+    /*
+     * The evaluation of a file, null where there was no ground truth
+     */
+    private static class Evaluation {
+        EventEvaluation.Result[] onsets = null;
+        EventEvaluation.Result[] beats = null;
+        // correct tempo, multiple of the correct tempo
+        boolean[] tempo = null;
+        // the costs of the analysis (not part of the evaluation as such)
+        StageMetrics metrics = null;
+    }
+
+    /*
+     * Analyzes one file, writes the results to outputDirectory and evaluates
+     * them against the ground truth files given; with writeMetrics also the
+     * costs of the stages
+     */
+    private static Evaluation run(Job job, String outputDirectory, Processor.Settings settings, double[] tolerances,
+            boolean writeMetrics) {
+        String wavFileName = job.wavFileName;
+        String shortWavFileName = outputName(wavFileName);
+        String outputOnsetsFileName = outputDirectory + shortWavFileName + ".onsets";
+        String outputTempoFileName = outputDirectory + shortWavFileName + ".bpms";
+        String outputBeatsFileName = outputDirectory + shortWavFileName + ".beats";
+
+        Processor p = new Processor(wavFileName, settings);
+        p.analyze(job.onsetGroundTruthFileName != null ? job.onsetGroundTruthFileName : "");
 
         System.out.println();
         System.out.println("Outputting Onset Times to " + outputOnsetsFileName + "...");
@@ -109,18 +256,277 @@ public class Runner {
         writeDataToFile(p.getBeats(), outputBeatsFileName);
 
 
-        if (hasOnsetGroundTruth) {
+        Evaluation evaluation = new Evaluation();
+        evaluation.metrics = p.getMetrics();
+        if (writeMetrics) {
+            String outputMetricsFileName = outputDirectory + shortWavFileName + ".metrics.json";
+            System.out.println("Outputting Metrics to " + outputMetricsFileName + "...");
+            writeStringToFile(p.getMetrics().toJson(), outputMetricsFileName);
+        }
+        if (job.onsetGroundTruthFileName != null) {
             String onsetEvalOut = outputDirectory + shortWavFileName + ".onsets.eval";
-            evaluateOnsets(p.getOnsets(), onsetGroundTruthFileName, onsetEvalOut);
+            evaluation.onsets = evaluateOnsets(p.getOnsetTimes(), job.onsetGroundTruthFileName, onsetEvalOut, tolerances);
         }
-        if (hasTempoGroundTruth) {
+        if (job.tempoGroundTruthFileName != null) {
             String tempoEvalOut = outputDirectory + shortWavFileName + ".bpms.eval";
-            evaluateTempo(p.getTempo(), tempoGroundTruthFileName, tempoEvalOut);
+            evaluation.tempo = evaluateTempo(p.getTempo(), job.tempoGroundTruthFileName, tempoEvalOut);
         }
-        if (hasBeatGroundTruth) {
+        if (job.beatGroundTruthFileName != null) {
             String beatEvalOut = outputDirectory + shortWavFileName + ".beats.eval";
-            evaluateBeats(p.getBeats(), beatGroundTruthFileName, beatEvalOut);
+            evaluation.beats = evaluateBeats(p.getBeatTimes(), job.beatGroundTruthFileName, beatEvalOut, tolerances);
         }
+        return evaluation;
+    }
+
+    /*
+     * The files of a batch: either all .wav files of a directory, with the
+     * ground truth files next to them (same name, extension .onsets, .bpms
+     * and .beats) where they exist, or a manifest with one file per line:
+     *   WAVFILE [ONSETGROUNDTRUTH [TEMPOGROUNDTRUTH [BEATGROUNDTRUTH]]]
+     * where - stands for a missing file, relative paths are relative to the
+     * manifest and lines starting with # are ignored.
+     */
+    private static List<Job> readJobs(File source) throws IOException {
+        List<Job> jobs = new ArrayList<Job>();
+        if (source.isDirectory()) {
+            File[] files = source.listFiles((directory, name) -> name.toLowerCase().endsWith(".wav"));
+            if (files == null) {
+                throw new IOException("cannot list the directory");
+            }
+            Arrays.sort(files);
+            for (File file : files) {
+                String path = file.getPath();
+                String base = path.substring(0, path.lastIndexOf("."));
+                Job job = new Job(path);
+                job.onsetGroundTruthFileName = existing(base + ".onsets");
+                job.tempoGroundTruthFileName = existing(base + ".bpms");
+                job.beatGroundTruthFileName = existing(base + ".beats");
+                jobs.add(job);
+            }
+            return jobs;
+        }
+
+        BufferedReader reader = new BufferedReader(new FileReader(source));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                StringTokenizer st = new StringTokenizer(line);
+                if (!st.hasMoreTokens() || line.trim().startsWith("#")) {
+                    continue;
+                }
+                Job job = new Job(resolve(source, st.nextToken()));
+                job.onsetGroundTruthFileName = st.hasMoreTokens() ? resolve(source, st.nextToken()) : null;
+                job.tempoGroundTruthFileName = st.hasMoreTokens() ? resolve(source, st.nextToken()) : null;
+                job.beatGroundTruthFileName = st.hasMoreTokens() ? resolve(source, st.nextToken()) : null;
+                jobs.add(job);
+            }
+        } finally {
+            reader.close();
+        }
+        return jobs;
+    }
+
+    // the name of the output files of a file: without directory and extension
+    private static String outputName(String wavFileName) {
+        return wavFileName.substring(wavFileName.lastIndexOf("/") + 1, wavFileName.lastIndexOf("."));
+    }
+
+    // an output name shared by several of the files, null if there is none
+    private static String duplicateOutputName(List<Job> jobs) {
+        Set<String> names = new HashSet<String>();
+        for (Job job : jobs) {
+            String name = outputName(job.wavFileName);
+            if (!names.add(name)) {
+                return name;
+            }
+        }
+        return null;
+    }
+
+    private static String existing(String fileName) {
+        return new File(fileName).isFile() ? fileName : null;
+    }
+
+    // a path of the manifest, null for "-"
+    private static String resolve(File manifest, String path) {
+        if (path.equals("-")) {
+            return null;
+        }
+        File file = new File(path);
+        if (!file.isAbsolute() && manifest.getParentFile() != null) {
+            file = new File(manifest.getParentFile(), path);
+        }
+        return file.getPath();
+    }
+
+    /*
+     * Analyzes the files in one JVM on a pool of the given number of threads,
+     * the largest files first so that no long one is left running at the end.
+     * Each file is analyzed exactly as by a single run (same output files).
+     * Returns false if any of them failed; the others are completed anyway.
+     * The evaluations of all files are summed up in corpus.eval, with
+     * writeMetrics the percentiles of their costs in corpus.metrics.json.
+     */
+    private static boolean runBatch(List<Job> jobs, String outputDirectory, Processor.Settings settings, int threads,
+            double[] tolerances, boolean writeMetrics) {
+        List<Job> ordered = new ArrayList<Job>(jobs);
+        ordered.sort(Comparator.comparingLong((Job job) -> new File(job.wavFileName).length()).reversed());
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, Math.max(1, ordered.size())));
+        List<Future<Evaluation>> futures = new ArrayList<Future<Evaluation>>(ordered.size());
+        List<Evaluation> evaluations = new ArrayList<Evaluation>(ordered.size());
+        int failed = 0;
+        try {
+            for (Job job : ordered) {
+                futures.add(pool.submit(() -> run(job, outputDirectory, settings, tolerances, writeMetrics)));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    evaluations.add(futures.get(i).get());
+                } catch (ExecutionException ex) {
+                    failed++;
+                    Logger.getLogger(Runner.class.getName()).log(Level.SEVERE,
+                            "Analysis of " + ordered.get(i).wavFileName + " failed", ex.getCause());
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            pool.shutdownNow();
+        }
+        System.out.println("\nAnalyzed " + (ordered.size() - failed) + " of " + ordered.size() + " files");
+        writeCorpusEvaluation(evaluations, tolerances, outputDirectory + "corpus.eval");
+        if (writeMetrics) {
+            List<StageMetrics> metrics = new ArrayList<StageMetrics>();
+            for (Evaluation evaluation : evaluations) {
+                metrics.add(evaluation.metrics);
+            }
+            String corpusMetricsOut = outputDirectory + "corpus.metrics.json";
+            System.out.println("Outputting Corpus Metrics to " + corpusMetricsOut);
+            writeStringToFile(StageMetrics.summaryJson(metrics), corpusMetricsOut);
+        }
+        return failed == 0;
+    }
+
+    /*
+     * Evaluates the grid of parameters on the files (see ParameterSweep) and
+     * writes the configurations, the best first, to sweep.txt
+     */
+    private static void runSweep(List<Job> jobs, String gridSpec, String outputDirectory, Processor.Settings settings,
+            int threads, double tolerance) {
+        List<ParameterSweep.Track> tracks = new ArrayList<ParameterSweep.Track>();
+        for (Job job : jobs) {
+            tracks.add(new ParameterSweep.Track(job.wavFileName, job.onsetGroundTruthFileName,
+                    job.tempoGroundTruthFileName, job.beatGroundTruthFileName));
+        }
+        ParameterSweep sweep = null;
+        try {
+            ParameterSweep.Grid grid = ParameterSweep.Grid.parse(gridSpec);
+            System.out.println("Evaluating " + grid.size() + " configurations on " + tracks.size() + " files");
+            sweep = new ParameterSweep(tracks, settings.onsetFunctions[0], grid, tolerance, settings);
+        } catch (IllegalArgumentException ex) {
+            System.out.println("Invalid grid: " + ex.getMessage());
+            System.exit(1);
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<ParameterSweep.Result> results;
+        try {
+            results = sweep.run(pool);
+        } finally {
+            pool.shutdownNow();
+        }
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("# rank meanF onsetF beatF tempoAccuracy configuration\n");
+        for (int i = 0; i < results.size(); i++) {
+            ParameterSweep.Result result = results.get(i);
+            sb.append(i + 1).append(' ').append(result.meanFMeasure()).append(' ').append(result.onsetFMeasure)
+                    .append(' ').append(result.beatFMeasure).append(' ').append(result.tempoAccuracy)
+                    .append(' ').append(result.configuration).append("\n");
+        }
+
+        String sweepOut = outputDirectory + "sweep.txt";
+        System.out.println("\nBest configurations:");
+        for (int i = 0; i < Math.min(10, results.size()); i++) {
+            ParameterSweep.Result result = results.get(i);
+            System.out.println((i + 1) + ". F " + result.meanFMeasure() + ": " + result.configuration);
+        }
+        System.out.println("Outputting Sweep Results to " + sweepOut);
+        try {
+            FileWriter outputwriter = new FileWriter(sweepOut);
+            outputwriter.append(sb.toString());
+            outputwriter.flush();
+            outputwriter.close();
+        } catch (IOException ex) {
+            Logger.getLogger(Runner.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    /*
+     * Writes the micro and macro averages of the onset and beat evaluations
+     * at each tolerance and the tempo accuracy of all files evaluated
+     */
+    private static void writeCorpusEvaluation(List<Evaluation> evaluations, double[] tolerances, String corpusEvalOut) {
+        EventEvaluation.Aggregate[] onsets = new EventEvaluation.Aggregate[tolerances.length];
+        EventEvaluation.Aggregate[] beats = new EventEvaluation.Aggregate[tolerances.length];
+        int tempoFiles = 0, correctTempo = 0, multipleTempo = 0;
+        for (int t = 0; t < tolerances.length; t++) {
+            onsets[t] = new EventEvaluation.Aggregate();
+            beats[t] = new EventEvaluation.Aggregate();
+        }
+        for (Evaluation evaluation : evaluations) {
+            for (int t = 0; t < tolerances.length; t++) {
+                if (evaluation.onsets != null) {
+                    onsets[t].add(evaluation.onsets[t]);
+                }
+                if (evaluation.beats != null) {
+                    beats[t].add(evaluation.beats[t]);
+                }
+            }
+            if (evaluation.tempo != null) {
+                tempoFiles++;
+                correctTempo += evaluation.tempo[0] ? 1 : 0;
+                multipleTempo += evaluation.tempo[1] ? 1 : 0;
+            }
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (int t = 0; t < tolerances.length; t++) {
+            appendAggregate(sb, "Onsets", tolerances[t], onsets[t]);
+        }
+        for (int t = 0; t < tolerances.length; t++) {
+            appendAggregate(sb, "Beats", tolerances[t], beats[t]);
+        }
+        sb.append("Tempo (").append(tempoFiles).append(" files)\n");
+        sb.append("Correct Tempo found: ").append(correctTempo).append("\n");
+        sb.append("Multiple of Correct Tempo found: ").append(multipleTempo).append("\n");
+
+        System.out.println("\nCorpus Evaluation: \n" + sb.toString());
+        System.out.println("Outputting Corpus Evaluation to " + corpusEvalOut);
+        try {
+            FileWriter outputwriter = new FileWriter(corpusEvalOut);
+            outputwriter.append(sb.toString());
+            outputwriter.flush();
+            outputwriter.close();
+        } catch (IOException ex) {
+            Logger.getLogger(Runner.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    private static void appendAggregate(StringBuilder sb, String name, double tolerance, EventEvaluation.Aggregate aggregate) {
+        EventEvaluation.Result micro = aggregate.micro();
+        sb.append(name).append(" (tolerance ").append(tolerance).append(" s, ").append(aggregate.files()).append(" files)\n");
+        sb.append("TP: ").append(micro.truePositives).append("\n");
+        sb.append("FP: ").append(micro.falsePositives).append("\n");
+        sb.append("FN: ").append(micro.falseNegatives).append("\n");
+        sb.append("Micro Precision: ").append(micro.precision()).append("\n");
+        sb.append("Micro Recall: ").append(micro.recall()).append("\n");
+        sb.append("Micro F-Measure: ").append(micro.fMeasure()).append("\n");
+        sb.append("Macro Precision: ").append(aggregate.macroPrecision()).append("\n");
+        sb.append("Macro Recall: ").append(aggregate.macroRecall()).append("\n");
+        sb.append("Macro F-Measure: ").append(aggregate.macroFMeasure()).append("\n\n");
     }
 
     /*
@@ -154,110 +560,131 @@ public class Runner {
 
     }
 
-    // Evaluate the Onset Estimations
-    private static void evaluateOnsets(List<Double> onsets, String onsetGroundTruthFileName, String onsetEvalOut) {
-
-        int TP = 0;
-        int FP = 0;
-        int FN = 0;
-        double precision = 0;
-        double recall = 0;
-        double fmeasure = 0;
-
-        LinkedList<Double> groundtruthOnsets = new LinkedList<Double>();
-        LinkedList<Double> groundtruthOnsetsRaw = new LinkedList<Double>();
-
+    /*
+     * Simple Fileout Method for a whole text (the metrics...)
+     */
+    private static void writeStringToFile(String data, String filename) {
         try {
-            BufferedReader reader = new BufferedReader(new FileReader(onsetGroundTruthFileName));
-            String line;
-
-            while ((line = reader.readLine()) != null) {
-                StringTokenizer st = new StringTokenizer(line);
-                groundtruthOnsetsRaw.add(Double.parseDouble(st.nextToken()));
-            }
-            reader.close();
+            FileWriter outputwriter = new FileWriter(filename);
+            outputwriter.write(data);
+            outputwriter.flush();
+            outputwriter.close();
         } catch (IOException ex) {
             Logger.getLogger(Runner.class.getName()).log(Level.SEVERE, null, ex);
         }
+    }
 
-        for (int i = 0; i < groundtruthOnsetsRaw.size(); i++) {
-            if (groundtruthOnsets.size() == 0) {
-                groundtruthOnsets.add(groundtruthOnsetsRaw.get(i));
-            }
-            if (groundtruthOnsetsRaw.get(i) - groundtruthOnsets.getLast() >= 0.05) {
-                groundtruthOnsets.add(groundtruthOnsetsRaw.get(i));
-            } else {
-                double mean = (groundtruthOnsetsRaw.get(i) + groundtruthOnsets.getLast()) / 2;
-                groundtruthOnsets.remove(groundtruthOnsets.size() - 1);
-                groundtruthOnsets.add(mean);
-            }
-        }
-
-        Iterator<Double> it = groundtruthOnsets.iterator();
-        while (it.hasNext()) {
-            double d = it.next();
-            double tmp = findNearest(d, onsets);
-            if (Math.abs(d - tmp) <= 0.05) {
-                onsets.remove(tmp);
-                it.remove();
-                TP++;
-            }
-
-        }
-        FN = groundtruthOnsets.size();
-        FP = onsets.size();
+    // Evaluate the Onset Estimations
+    private static EventEvaluation.Result[] evaluateOnsets(double[] onsets, String onsetGroundTruthFileName,
+            String onsetEvalOut, double[] tolerances) {
+        return evaluateEvents("Onset", onsets, onsetGroundTruthFileName, onsetEvalOut, tolerances);
+    }
 
-        precision = (double) TP / (TP + FP);
-        recall = (double) TP / (TP + FN);
-        fmeasure = (2 * precision * recall) / (precision + recall);
+    /*
+     * Evaluates onsets or beats (name) at each tolerance, and writes the
+     * result at the first one to eventEvalOut
+     */
+    private static EventEvaluation.Result[] evaluateEvents(String name, double[] events, String groundTruthFileName,
+            String eventEvalOut, double[] tolerances) {
+        double[] groundtruthEvents = readEventGroundTruth(groundTruthFileName);
+        EventEvaluation.Result[] results = EventEvaluation.evaluate(events, groundtruthEvents, tolerances);
 
+        EventEvaluation.Result result = results[0];
         StringBuilder sb = new StringBuilder();
         sb.append("TP: ");
-        sb.append(TP);
+        sb.append(result.truePositives);
         sb.append("\n");
         sb.append("FP: ");
-        sb.append(FP);
+        sb.append(result.falsePositives);
         sb.append("\n");
         sb.append("FN: ");
-        sb.append(FN);
+        sb.append(result.falseNegatives);
         sb.append("\n");
         sb.append("Precision: ");
-        sb.append(precision);
+        sb.append(result.precision());
         sb.append("\n");
         sb.append("Recall: ");
-        sb.append(recall);
+        sb.append(result.recall());
         sb.append("\n");
         sb.append("F-Measure: ");
-        sb.append(fmeasure);
+        sb.append(result.fMeasure());
 
-        System.out.println("\nOnset Evaluation: \n" + sb.toString());
-        System.out.println("Outputting Onset Evaluation to " + onsetEvalOut);
+        System.out.println("\n" + name + " Evaluation: \n" + sb.toString());
+        System.out.println("Outputting " + name + " Evaluation to " + eventEvalOut);
         try {
-            FileWriter outputwriter = new FileWriter(onsetEvalOut);
+            FileWriter outputwriter = new FileWriter(eventEvalOut);
             outputwriter.append(sb.toString());
             outputwriter.flush();
             outputwriter.close();
         } catch (IOException ex) {
             Logger.getLogger(Runner.class.getName()).log(Level.SEVERE, null, ex);
         }
+        return results;
     }
 
-    private static double findNearest(double val, List<Double> list) {
-        double minDist = Double.MAX_VALUE;
-        double retval = 0;
+    /*
+     * Reads the events (first column) of an onset or beat ground truth file,
+     * merged as for the evaluation
+     */
+    static double[] readEventGroundTruth(String groundTruthFileName) {
+        DoubleArray groundtruthEventsRaw = new DoubleArray();
 
-        for (Double d : list) {
-            if (Math.abs(val - d) < minDist) {
-                minDist = Math.abs(val - d);
-                retval = d;
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader(groundTruthFileName));
+            String line;
+
+            while ((line = reader.readLine()) != null) {
+                StringTokenizer st = new StringTokenizer(line);
+                groundtruthEventsRaw.add(Double.parseDouble(st.nextToken()));
             }
+            reader.close();
+        } catch (IOException ex) {
+            Logger.getLogger(Runner.class.getName()).log(Level.SEVERE, null, ex);
         }
-        return retval;
 
+        return EventEvaluation.mergeGroundTruth(groundtruthEventsRaw.toArray(), 0.05);
     }
 
     // Evaluate the Tempo Estimation
-    private static void evaluateTempo(double tempo, String tempoGroundTruthFileName, String tempoEvalOut) {
+    private static boolean[] evaluateTempo(double tempo, String tempoGroundTruthFileName, String tempoEvalOut) {
+        double gtempo = readTempoGroundTruth(tempoGroundTruthFileName);
+        boolean[] found = compareTempo(tempo, gtempo);
+        boolean correctTempo = found[0];
+        boolean multipleTempo = found[1];
+
+        System.out.println("\nTempo Evaluation:");
+        System.out.println("Correct Tempo:" + gtempo + " Estimated Tempo: " + tempo);
+        System.out.println("Correct Tempo found: " + correctTempo);
+        System.out.println("Multiple of Correct Tempo found: " + multipleTempo);
+
+        System.out.println("Outputting Tempo Evaluation to " + tempoEvalOut);
+        try {
+            FileWriter outputwriter = new FileWriter(tempoEvalOut);
+            if (correctTempo) {
+                outputwriter.append("1 ");
+            } else {
+                outputwriter.append("0 ");
+            }
+
+            if (multipleTempo) {
+                outputwriter.append("1");
+            } else {
+                outputwriter.append("0");
+            }
+
+            outputwriter.flush();
+            outputwriter.close();
+        } catch (IOException ex) {
+            Logger.getLogger(Runner.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        return new boolean[] { correctTempo, multipleTempo };
+    }
+
+    /*
+     * Reads the tempo of a tempo ground truth file: the first one, or of two
+     * tempi the one with at least half of the votes
+     */
+    static double readTempoGroundTruth(String tempoGroundTruthFileName) {
         double gtempo = 0;
         try {
             BufferedReader reader = new BufferedReader(new FileReader(tempoGroundTruthFileName));
@@ -283,7 +710,14 @@ public class Runner {
         } catch (IOException ex) {
             Logger.getLogger(Runner.class.getName()).log(Level.SEVERE, null, ex);
         }
+        return gtempo;
+    }
 
+    /*
+     * Whether the tempo is the correct one (within 4%), and whether it is the
+     * correct one or a multiple (2, 3, 1/2, 1/3) of it
+     */
+    static boolean[] compareTempo(double tempo, double gtempo) {
         boolean correctTempo = false;
         boolean multipleTempo = false;
 
@@ -303,118 +737,12 @@ public class Runner {
                 }
             }
         }
-
-        System.out.println("\nTempo Evaluation:");
-        System.out.println("Correct Tempo:" + gtempo + " Estimated Tempo: " + tempo);
-        System.out.println("Correct Tempo found: " + correctTempo);
-        System.out.println("Multiple of Correct Tempo found: " + multipleTempo);
-
-        System.out.println("Outputting Tempo Evaluation to " + tempoEvalOut);
-        try {
-            FileWriter outputwriter = new FileWriter(tempoEvalOut);
-            if (correctTempo) {
-                outputwriter.append("1 ");
-            } else {
-                outputwriter.append("0 ");
-            }
-
-            if (multipleTempo) {
-                outputwriter.append("1");
-            } else {
-                outputwriter.append("0");
-            }
-
-            outputwriter.flush();
-            outputwriter.close();
-        } catch (IOException ex) {
-            Logger.getLogger(Runner.class.getName()).log(Level.SEVERE, null, ex);
-        }
+        return new boolean[] { correctTempo, multipleTempo };
     }
 
     // Evaluate the Beat Estimations
-    private static void evaluateBeats(List<Double> beats, String beatGroundTruthFileName, String beatEvalOut) {
-        int TP = 0;
-        int FP = 0;
-        int FN = 0;
-        double precision = 0;
-        double recall = 0;
-        double fmeasure = 0;
-
-        LinkedList<Double> groundtruthBeats = new LinkedList<Double>();
-        LinkedList<Double> groundtruthBeatsRaw = new LinkedList<Double>();
-
-        try {
-            BufferedReader reader = new BufferedReader(new FileReader(beatGroundTruthFileName));
-            String line;
-
-            while ((line = reader.readLine()) != null) {
-                StringTokenizer st = new StringTokenizer(line);
-                groundtruthBeatsRaw.add(Double.parseDouble(st.nextToken()));
-            }
-            reader.close();
-        } catch (IOException ex) {
-            Logger.getLogger(Runner.class.getName()).log(Level.SEVERE, null, ex);
-        }
-
-        for (int i = 0; i < groundtruthBeatsRaw.size(); i++) {
-            if (groundtruthBeats.size() == 0) {
-                groundtruthBeats.add(groundtruthBeatsRaw.get(i));
-            }
-            if (groundtruthBeatsRaw.get(i) - groundtruthBeats.getLast() >= 0.05) {
-                groundtruthBeats.add(groundtruthBeatsRaw.get(i));
-            } else {
-                double mean = (groundtruthBeatsRaw.get(i) + groundtruthBeats.getLast()) / 2;
-                groundtruthBeats.remove(groundtruthBeats.size() - 1);
-                groundtruthBeats.add(mean);
-            }
-        }
-
-        Iterator<Double> it = groundtruthBeats.iterator();
-        while (it.hasNext()) {
-            double d = it.next();
-            double tmp = findNearest(d, beats);
-            if (Math.abs(d - tmp) <= 0.05) {
-                beats.remove(tmp);
-                it.remove();
-                TP++;
-            }
-
-        }
-        FN = groundtruthBeats.size();
-        FP = beats.size();
-
-        precision = (double) TP / (TP + FP);
-        recall = (double) TP / (TP + FN);
-        fmeasure = (2 * precision * recall) / (precision + recall);
-
-        StringBuilder sb = new StringBuilder();
-        sb.append("TP: ");
-        sb.append(TP);
-        sb.append("\n");
-        sb.append("FP: ");
-        sb.append(FP);
-        sb.append("\n");
-        sb.append("FN: ");
-        sb.append(FN);
-        sb.append("\n");
-        sb.append("Precision: ");
-        sb.append(precision);
-        sb.append("\n");
-        sb.append("Recall: ");
-        sb.append(recall);
-        sb.append("\n");
-        sb.append("F-Measure: ");
-        sb.append(fmeasure);
-
-        System.out.println("\nBeat Evaluation: \n" + sb.toString());
-        System.out.println("Outputting Beat Evaluation to " + beatEvalOut);
-        try {
-            FileWriter outputwriter = new FileWriter(beatEvalOut);
-            outputwriter.append(sb.toString());
-            outputwriter.flush();
-            outputwriter.close();
-        } catch (IOException ex) {
-            Logger.getLogger(Runner.class.getName()).log(Level.SEVERE, null, ex);
-        }
+    private static EventEvaluation.Result[] evaluateBeats(double[] beats, String beatGroundTruthFileName,
+            String beatEvalOut, double[] tolerances) {
+        return evaluateEvents("Beat", beats, beatGroundTruthFileName, beatEvalOut, tolerances);
     }
 }
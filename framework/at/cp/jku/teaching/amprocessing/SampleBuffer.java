@@ -0,0 +1,50 @@
+/*
+ * SampleBuffer.java
+ *
+ * Growable store for the (mono) samples of an audio file in the time domain.
+ * The samples are kept as floats, which is exact for 16 bit input and halves
+ * the memory needed compared to doubles.
+ */
+package at.cp.jku.teaching.amprocessing;
+
+import java.util.Arrays;
+
+public class SampleBuffer {
+
+    private float[] samples;
+    private int size;
+
+    public SampleBuffer(int expectedSamples) {
+        samples = new float[Math.max(1024, expectedSamples)];
+    }
+
+    void add(double sample) {
+        if (size == samples.length) {
+            int capacity = samples.length + (samples.length >> 1);
+            if (capacity < 0 || capacity > Integer.MAX_VALUE - 8) {
+                capacity = Integer.MAX_VALUE - 8;
+                if (capacity <= size) {
+                    throw new OutOfMemoryError("Too many samples");
+                }
+            }
+            samples = Arrays.copyOf(samples, capacity);
+        }
+        samples[size++] = (float) sample;
+    }
+
+    public float get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+        return samples[index];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /** Returns a copy of all samples. */
+    public float[] toArray() {
+        return Arrays.copyOf(samples, size);
+    }
+}
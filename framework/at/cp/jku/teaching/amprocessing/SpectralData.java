@@ -2,6 +2,7 @@
  * SpectralData.java
  *
  * The container for the data of one frame of the audio file
+ * (a frame of the streaming ring; the stored STFT is a Spectrogram)
  */
 package at.cp.jku.teaching.amprocessing;
 
@@ -13,8 +14,10 @@ public class SpectralData {
 
     // contains the magnitudes of the sinusoids
     public double[] magnitudes;
+    // the default treshold for splitting the sinusoids
+    static final int LOW_FREQUENCY_TRESHOLD = 50;
     // sets the treshold for splitting the sinusoids
-    public int lowFrequencyTreshold = 50;
+    public int lowFrequencyTreshold = LOW_FREQUENCY_TRESHOLD;
     // contains the magnitudes of the sinusoids with low frequency
     public double[] lowMagnitudes;
     // contains the phases of the sinusoids
@@ -28,17 +31,36 @@ public class SpectralData {
     // the size of each of the above arrays (= fftSize/2 + 1)
     public int size;
 
-    SpectralData(double[] reBuffer, double[] imBuffer, int fftSize) {
+    SpectralData(int fftSize) {
         size = fftSize / 2 + 1;
         phases = new double[size];
         unwrappedPhases = new double[size];
         magnitudes = new double[size];
         lowMagnitudes = new double[size-lowFrequencyTreshold];
+    }
+
+    SpectralData(double[] reBuffer, double[] imBuffer, int fftSize) {
+        this(fftSize);
+        set(reBuffer, imBuffer);
+    }
 
+    /** Overwrites this frame with the output of another FFT, so that
+     *  frame objects can be recycled when streaming.
+     */
+    void set(double[] reBuffer, double[] imBuffer) {
+        set(reBuffer, imBuffer, true);
+    }
+
+    // as above, the phases are only copied if withPhases is true
+    void set(double[] reBuffer, double[] imBuffer, boolean withPhases) {
+        totalEnergy = 0;
+        lowEnergy = 0;
         for (int i = 0; i < size; i++) {
             magnitudes[i] = reBuffer[i];
             totalEnergy += reBuffer[i];
-            phases[i] = imBuffer[i];
+        }
+        if (withPhases) {
+            System.arraycopy(imBuffer, 0, phases, 0, size);
         }
         for (int j = magnitudes.length-1, i = 0; j > lowFrequencyTreshold; j--, i++) {
         	lowMagnitudes[i] = magnitudes[j];
@@ -47,29 +69,37 @@ public class SpectralData {
     }
 
     public void computeUnwrappedPhases(double[] uphases) {
+        unwrapPhases(phases, 0, uphases, 0, unwrappedPhases, 0, size);
+    }
+
+    /** Unwraps the phases of a frame given the unwrapped phases of the
+     *  previous frame; the arrays may be rows of a larger (flat) array.
+     */
+    static void unwrapPhases(double[] phases, int phOffset, double[] uphases, int uphOffset,
+            double[] unwrappedPhases, int offset, int size) {
         double cutoff = Math.PI;
 
 
         for (int i = 0; i < size; i++) {
-            unwrappedPhases[i] = phases[i];
+            unwrappedPhases[offset + i] = phases[phOffset + i];
 
-            double dp = phases[i] - uphases[i];
+            double dp = phases[phOffset + i] - uphases[uphOffset + i];
             double dps = normphase(dp);
 
             if (dps == -Math.PI && dp > 0) {
                 dps = Math.PI;
             }
             if (Math.abs(dp) >= cutoff) {
-                unwrappedPhases[i] += (dps-dp);
+                unwrappedPhases[offset + i] += (dps-dp);
             }
         }
     }
 
-    private double normphase(double ph) {
+    private static double normphase(double ph) {
         return myfmod(ph + Math.PI, 2 * Math.PI) - Math.PI;
     }
 
-    private double myfmod(double x, double y) {
+    private static double myfmod(double x, double y) {
         return x - y * Math.floor(x / y);
     }
 }
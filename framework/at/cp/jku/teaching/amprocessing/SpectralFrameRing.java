@@ -0,0 +1,61 @@
+/*
+ * SpectralFrameRing.java
+ *
+ * A bounded ring of the most recent frames of the STFT, used when an
+ * AudioFile is processed in streaming mode. The SpectralData objects are
+ * allocated once and recycled, so the memory needed does not depend on the
+ * length of the audio file.
+ */
+package at.cp.jku.teaching.amprocessing;
+
+public class SpectralFrameRing {
+
+    private final SpectralData[] frames;
+    private int head = -1;
+    private int count = 0;
+
+    public SpectralFrameRing(int capacity, int fftSize) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1");
+        }
+        frames = new SpectralData[capacity];
+        for (int i = 0; i < capacity; i++) {
+            frames[i] = new SpectralData(fftSize);
+        }
+    }
+
+    /** Advances the ring and returns the (oldest) frame object which is to be
+     *  overwritten with the data of the new frame.
+     */
+    SpectralData next() {
+        head = (head + 1) % frames.length;
+        count++;
+        return frames[head];
+    }
+
+    /** Returns a recent frame.
+     *  @param back 0 for the current frame, 1 for the previous one, ...
+     */
+    public SpectralData get(int back) {
+        if (back < 0 || back >= size()) {
+            throw new IndexOutOfBoundsException("frame " + back + " is not available");
+        }
+        return frames[(head - back + frames.length) % frames.length];
+    }
+
+    /** The number of frames which can currently be accessed via get(). */
+    public int size() {
+        return Math.min(count, frames.length);
+    }
+
+    public int capacity() {
+        return frames.length;
+    }
+
+    /** The total number of frames which went through the ring, i.e. the index
+     *  of the current frame is count() - 1.
+     */
+    public int count() {
+        return count;
+    }
+}
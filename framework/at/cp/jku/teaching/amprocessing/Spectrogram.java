@@ -0,0 +1,236 @@
+/*
+ * Spectrogram.java
+ *
+ * Contiguous storage of the STFT of an audio file. Magnitudes, phases and
+ * unwrapped phases of all frames are kept in flat arrays (frames x bins), so
+ * the values of bin k of frame n are found at offset(n) + k and every frame
+ * can be accessed in constant time.
+ *
+ * The arrays are exposed directly for the inner loops of the onset detection;
+ * single values are read with magnitude(n, k), phase(n, k) and
+ * unwrappedPhase(n, k).
+ *
+ * Which of the arrays are filled is given by the features (see AudioFile);
+ * the phase arrays are null if the phases are not computed.
+ */
+package at.cp.jku.teaching.amprocessing;
+
+import java.nio.DoubleBuffer;
+import java.util.Arrays;
+
+public class Spectrogram {
+
+    // the number of bins of each frame (= fftSize/2 + 1)
+    private final int size;
+    private final int features;
+    private int frames;
+    private double[] magnitudes;
+    private double[] phases;
+    private double[] unwrappedPhases;
+    private double[] totalEnergy;
+    private double[] lowEnergy;
+
+    /**
+     * @param fftSize the size of the FFT the frames are computed with
+     * @param expectedFrames the number of frames to reserve memory for; the
+     * storage grows if more frames are added
+     * @param features the data to be stored, a combination of
+     * AudioFile.MAGNITUDES, AudioFile.PHASES and AudioFile.UNWRAPPED_PHASES
+     */
+    public Spectrogram(int fftSize, int expectedFrames, int features) {
+        size = fftSize / 2 + 1;
+        this.features = AudioFile.normalizeFeatures(features);
+        int capacity = Math.max(16, expectedFrames);
+        magnitudes = new double[capacity * size];
+        if (hasFeature(AudioFile.PHASES)) {
+            phases = new double[capacity * size];
+        }
+        if (hasFeature(AudioFile.UNWRAPPED_PHASES)) {
+            unwrappedPhases = new double[capacity * size];
+        }
+        totalEnergy = new double[capacity];
+        lowEnergy = new double[capacity];
+    }
+
+    /** Reserves memory for the given number of frames. */
+    void ensureCapacity(int capacity) {
+        if (capacity > totalEnergy.length) {
+            resize(capacity);
+        }
+    }
+
+    /** Appends a frame, given the magnitudes and (if stored) the phases of
+     *  the FFT; the unwrapped phases are computed right away.
+     */
+    void add(double[] reBuffer, double[] imBuffer) {
+        if (frames == totalEnergy.length) {
+            grow();
+        }
+        set(frames, reBuffer, imBuffer);
+        if (unwrappedPhases != null) {
+            int offset = frames * size;
+            if (frames == 0) {
+                Arrays.fill(unwrappedPhases, 0, size, 0);
+            } else {
+                SpectralData.unwrapPhases(phases, offset, unwrappedPhases, offset - size,
+                        unwrappedPhases, offset, size);
+            }
+        }
+        frames++;
+    }
+
+    /** Sets the number of frames, for filling them with set(). */
+    void setFrames(int frames) {
+        ensureCapacity(frames);
+        this.frames = frames;
+    }
+
+    /** Stores a frame (without the unwrapped phases, see
+     *  computeUnwrappedPhases()). Different frames may be set concurrently.
+     */
+    void set(int frame, double[] reBuffer, double[] imBuffer) {
+        int offset = frame * size;
+        System.arraycopy(reBuffer, 0, magnitudes, offset, size);
+        if (phases != null) {
+            System.arraycopy(imBuffer, 0, phases, offset, size);
+        }
+        computeEnergy(frame);
+    }
+
+    private void computeEnergy(int frame) {
+        int offset = frame * size;
+        double energy = 0;
+        for (int i = 0; i < size; i++) {
+            energy += magnitudes[offset + i];
+        }
+        double low = 0;
+        for (int j = size - 1; j > SpectralData.LOW_FREQUENCY_TRESHOLD; j--) {
+            low += magnitudes[offset + j];
+        }
+        totalEnergy[frame] = energy;
+        lowEnergy[frame] = low;
+    }
+
+    /** The number of values written by write(). */
+    long storedValues() {
+        return (long) frames * size * (phases != null ? 2 : 1);
+    }
+
+    /** Writes the magnitudes and (if stored) the phases of all frames; the
+     *  other values are derived from them by read().
+     */
+    void write(DoubleBuffer out) {
+        out.put(magnitudes, 0, frames * size);
+        if (phases != null) {
+            out.put(phases, 0, frames * size);
+        }
+    }
+
+    /** Replaces the frames by the given number of frames written by write()
+     *  (of a spectrogram with the same size and features).
+     */
+    void read(DoubleBuffer in, int frames) {
+        setFrames(frames);
+        in.get(magnitudes, 0, frames * size);
+        if (phases != null) {
+            in.get(phases, 0, frames * size);
+        }
+        for (int n = 0; n < frames; n++) {
+            computeEnergy(n);
+        }
+        computeUnwrappedPhases();
+    }
+
+    private void grow() {
+        resize(totalEnergy.length + (totalEnergy.length >> 1));
+    }
+
+    private void resize(int capacity) {
+        if ((long) capacity * size > Integer.MAX_VALUE - 8) {
+            capacity = (Integer.MAX_VALUE - 8) / size;
+            if (capacity <= frames) {
+                throw new OutOfMemoryError("Spectrogram too large, use the streaming mode");
+            }
+        }
+        magnitudes = Arrays.copyOf(magnitudes, capacity * size);
+        if (phases != null) {
+            phases = Arrays.copyOf(phases, capacity * size);
+        }
+        if (unwrappedPhases != null) {
+            unwrappedPhases = Arrays.copyOf(unwrappedPhases, capacity * size);
+        }
+        totalEnergy = Arrays.copyOf(totalEnergy, capacity);
+        lowEnergy = Arrays.copyOf(lowEnergy, capacity);
+    }
+
+    /** Computes the unwrapped phases of all frames (if they are stored),
+     *  for frames filled with set().
+     */
+    void computeUnwrappedPhases() {
+        if (unwrappedPhases == null || frames == 0) {
+            return;
+        }
+        Arrays.fill(unwrappedPhases, 0, size, 0);
+        for (int n = 1; n < frames; n++) {
+            SpectralData.unwrapPhases(phases, n * size, unwrappedPhases, (n - 1) * size,
+                    unwrappedPhases, n * size, size);
+        }
+    }
+
+    public boolean hasFeature(int feature) {
+        return (features & feature) == feature;
+    }
+
+    public int getFeatures() {
+        return features;
+    }
+
+    /** The number of frames. */
+    public int frames() {
+        return frames;
+    }
+
+    /** The number of bins per frame (= fftSize/2 + 1). */
+    public int size() {
+        return size;
+    }
+
+    /** The index of bin 0 of the given frame in the flat arrays. */
+    public int offset(int frame) {
+        return frame * size;
+    }
+
+    // the flat arrays hold capacity, not frames, rows; only the first
+    // frames() * size() values are valid (phases: null if not computed)
+    public double[] magnitudes() {
+        return magnitudes;
+    }
+
+    public double[] phases() {
+        return phases;
+    }
+
+    public double[] unwrappedPhases() {
+        return unwrappedPhases;
+    }
+
+    public double magnitude(int frame, int bin) {
+        return magnitudes[frame * size + bin];
+    }
+
+    public double phase(int frame, int bin) {
+        return phases[frame * size + bin];
+    }
+
+    public double unwrappedPhase(int frame, int bin) {
+        return unwrappedPhases[frame * size + bin];
+    }
+
+    public double totalEnergy(int frame) {
+        return totalEnergy[frame];
+    }
+
+    public double lowEnergy(int frame) {
+        return lowEnergy[frame];
+    }
+}
@@ -0,0 +1,424 @@
+/*
+ * SpectrogramCache.java
+ *
+ * On-disk cache of spectrograms, so that repeated analyses of the same audio
+ * (e.g. with other onset or tempo parameters) skip the decoding and the FFT.
+ * An entry is identified by the SHA-256 hash of the audio file's content
+ * together with the FFT size, hop size, window and features of the STFT; it
+ * holds the magnitudes (and phases) as raw doubles after a small header and
+ * is read back through a memory mapping.
+ *
+ * The content hash of a stored audio file is kept in a small reference file
+ * (named by the hash of the file's path) together with the file's length and
+ * modification time; as long as these are unchanged, the hash is taken from
+ * there, so a warm run does not read the audio at all.
+ *
+ * The total size of the entries and references is bounded: the least
+ * recently used entries are removed first, and with them the references to
+ * their content.
+ *
+ * Entries whose audio file has changed or disappeared are not found any more
+ * (their hash differs) but stay on disk until evicted; removeStale() deletes
+ * them (and unreadable entries and references) right away.
+ *
+ * All methods can be called concurrently; an entry is written to a temporary
+ * file and renamed, so readers never see a partial one. An entry may be
+ * evicted (by another thread or process) at any time; one which vanishes
+ * before it is opened is a cache miss, one already opened is read completely.
+ * Other errors are logged and treated as a cache miss.
+ */
+package at.cp.jku.teaching.amprocessing;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+public class SpectrogramCache {
+
+    private static final int MAGIC = 0x53504543; // "SPEC"
+    private static final int VERSION = 1;
+    private static final String SUFFIX = ".spec";
+    private static final int REFERENCE_MAGIC = 0x53524546; // "SREF"
+    private static final String REFERENCE_SUFFIX = ".ref";
+    private static final int HASH_LENGTH = 32;
+    // magic, version, fftSize, hopSize, window, features, size, frames,
+    // source length, source modification time, hash, path length
+    private static final int FIXED_HEADER = 8 * 4 + 2 * 8 + HASH_LENGTH + 4;
+
+    private final File directory;
+    private final long maxBytes;
+    // the content hashes of the audio files, valid while length and modification time are the same
+    // (in memory, and in the reference files for other processes)
+    private final ConcurrentHashMap<String, HashedFile> hashes = new ConcurrentHashMap<>();
+
+    private static class HashedFile {
+        final String path;
+        final long length, lastModified;
+        final byte[] hash;
+
+        HashedFile(String path, long length, long lastModified, byte[] hash) {
+            this.path = path;
+            this.length = length;
+            this.lastModified = lastModified;
+            this.hash = hash;
+        }
+    }
+
+    /**
+     * @param directory the directory of the entries (created if missing)
+     * @param maxBytes the maximum total size of the entries
+     * @throws IOException if the directory cannot be created
+     */
+    public SpectrogramCache(File directory, long maxBytes) throws IOException {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("maxBytes must not be negative");
+        }
+        Files.createDirectories(directory.toPath());
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Fills the spectrogram with the cached one of the audio file, if there is
+     * one with the same parameters (and the features of the spectrogram).
+     * @return true if found
+     */
+    public boolean load(File source, int fftSize, int hopSize, int window, Spectrogram spectrogram) {
+        try {
+            byte[] hash = contentHash(source).hash;
+            File entry = entryFile(hash, fftSize, hopSize, window, spectrogram.getFeatures());
+            if (!entry.isFile()) {
+                return false;
+            }
+            try (RandomAccessFile raf = new RandomAccessFile(entry, "r");
+                    FileChannel channel = raf.getChannel()) {
+                MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                Header header = Header.read(data);
+                if (header == null || header.fftSize != fftSize || header.hopSize != hopSize
+                        || header.window != window || header.features != spectrogram.getFeatures()
+                        || header.size != spectrogram.size() || !Arrays.equals(header.hash, hash)
+                        || data.capacity() - (long) header.dataOffset < valueCount(header) * 8) {
+                    Logger.getLogger(SpectrogramCache.class.getName()).log(Level.WARNING,
+                            "Removing invalid cache entry " + entry);
+                    Files.deleteIfExists(entry.toPath());
+                    return false;
+                }
+                data.position(header.dataOffset);
+                spectrogram.read(data.slice().asDoubleBuffer(), header.frames);
+            }
+            // the access time for the LRU order
+            entry.setLastModified(System.currentTimeMillis());
+            return true;
+        } catch (FileNotFoundException e) {
+            // evicted since the check above
+            return false;
+        } catch (IOException e) {
+            Logger.getLogger(SpectrogramCache.class.getName()).log(Level.WARNING,
+                    "Cannot read the cached spectrogram of " + source, e);
+            return false;
+        }
+    }
+
+    /**
+     * Stores the spectrogram of the audio file, then removes the least
+     * recently used entries while the cache is larger than its maximum size.
+     * Nothing is stored if the entry alone would exceed it.
+     */
+    public void store(File source, int fftSize, int hopSize, int window, Spectrogram spectrogram) {
+        File temp = null;
+        try {
+            HashedFile hashed = contentHash(source);
+            byte[] hash = hashed.hash;
+            byte[] path = source.getCanonicalPath().getBytes(StandardCharsets.UTF_8);
+            // the doubles start 8 byte aligned
+            int dataOffset = (FIXED_HEADER + path.length + 7) & ~7;
+            long length = dataOffset + spectrogram.storedValues() * 8;
+            if (length > maxBytes || length > Integer.MAX_VALUE) {
+                return;
+            }
+            temp = File.createTempFile("spectrogram", ".tmp", directory);
+            try (RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+                    FileChannel channel = raf.getChannel()) {
+                MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+                data.putInt(MAGIC).putInt(VERSION).putInt(fftSize).putInt(hopSize).putInt(window)
+                        .putInt(spectrogram.getFeatures()).putInt(spectrogram.size()).putInt(spectrogram.frames())
+                        .putLong(source.length()).putLong(source.lastModified()).put(hash)
+                        .putInt(path.length).put(path);
+                data.position(dataOffset);
+                spectrogram.write(data.slice().asDoubleBuffer());
+                data.force();
+            }
+            File entry = entryFile(hash, fftSize, hopSize, window, spectrogram.getFeatures());
+            Files.move(temp.toPath(), entry.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            temp = null;
+            writeReference(hashed);
+            evict();
+        } catch (IOException e) {
+            Logger.getLogger(SpectrogramCache.class.getName()).log(Level.WARNING,
+                    "Cannot cache the spectrogram of " + source, e);
+        } finally {
+            if (temp != null) {
+                temp.delete();
+            }
+        }
+    }
+
+    /**
+     * Removes the entries whose audio file no longer exists or has another
+     * content now, and those which cannot be read (e.g. of an older version).
+     * @return the number of entries removed
+     */
+    public int removeStale() {
+        int removed = 0;
+        for (File entry : entries()) {
+            if (isStale(entry) && entry.delete()) {
+                removed++;
+            }
+        }
+        for (File reference : references()) {
+            HashedFile hashed = readReference(reference);
+            File source = hashed != null ? new File(hashed.path) : null;
+            if (source == null || !source.isFile() || source.length() != hashed.length
+                    || source.lastModified() != hashed.lastModified) {
+                reference.delete();
+            }
+        }
+        return removed;
+    }
+
+    /** The total size of the entries and references in bytes. */
+    public long size() {
+        long size = 0;
+        for (File entry : entries()) {
+            size += entry.length();
+        }
+        for (File reference : references()) {
+            size += reference.length();
+        }
+        return size;
+    }
+
+    // removes the least recently used entries until the cache fits into
+    // maxBytes, and the references to content without an entry left
+    private synchronized void evict() {
+        File[] entries = entries();
+        File[] references = references();
+        long size = 0;
+        for (File entry : entries) {
+            size += entry.length();
+        }
+        for (File reference : references) {
+            size += reference.length();
+        }
+        if (size <= maxBytes) {
+            return;
+        }
+        Arrays.sort(entries, Comparator.comparingLong(File::lastModified));
+        // the content hashes (hex) of the remaining entries
+        Set<String> remaining = new HashSet<>();
+        for (File entry : entries) {
+            long length = entry.length();
+            if (size > maxBytes && entry.delete()) {
+                size -= length;
+            } else if (entry.getName().length() > 2 * HASH_LENGTH) {
+                remaining.add(entry.getName().substring(0, 2 * HASH_LENGTH));
+            }
+        }
+        for (File reference : references) {
+            HashedFile hashed = readReference(reference);
+            if (hashed == null || !remaining.contains(hex(hashed.hash))) {
+                reference.delete();
+            }
+        }
+    }
+
+    private boolean isStale(File entry) {
+        try (RandomAccessFile raf = new RandomAccessFile(entry, "r");
+                FileChannel channel = raf.getChannel()) {
+            ByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            Header header = Header.read(data);
+            if (header == null || data.capacity() - (long) header.dataOffset < valueCount(header) * 8) {
+                return true;
+            }
+            File source = new File(header.path);
+            if (!source.isFile()) {
+                return true;
+            }
+            return (source.length() != header.sourceLength || source.lastModified() != header.sourceLastModified)
+                    && !Arrays.equals(contentHash(source).hash, header.hash);
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
+    private File[] entries() {
+        File[] entries = directory.listFiles((dir, name) -> name.endsWith(SUFFIX));
+        return entries != null ? entries : new File[0];
+    }
+
+    private File[] references() {
+        File[] references = directory.listFiles((dir, name) -> name.endsWith(REFERENCE_SUFFIX));
+        return references != null ? references : new File[0];
+    }
+
+    private File entryFile(byte[] hash, int fftSize, int hopSize, int window, int features) {
+        StringBuilder name = new StringBuilder(hex(hash));
+        name.append('-').append(fftSize).append('-').append(hopSize).append('-').append(window)
+                .append('-').append(features).append(SUFFIX);
+        return new File(directory, name.toString());
+    }
+
+    private static long valueCount(Header header) {
+        boolean phases = (header.features & AudioFile.PHASES) != 0;
+        return (long) header.frames * header.size * (phases ? 2 : 1);
+    }
+
+    // the content hash of the audio file (from memory or its reference if
+    // the file is unchanged)
+    private HashedFile contentHash(File source) throws IOException {
+        String key = source.getCanonicalPath();
+        long length = source.length(), lastModified = source.lastModified();
+        HashedFile hashed = hashes.get(key);
+        if (hashed == null) {
+            hashed = readReference(referenceFile(key));
+        }
+        if (hashed != null && hashed.path.equals(key) && hashed.length == length
+                && hashed.lastModified == lastModified) {
+            hashes.put(key, hashed);
+            return hashed;
+        }
+        MessageDigest digest = sha256();
+        try (RandomAccessFile raf = new RandomAccessFile(source, "r");
+                FileChannel channel = raf.getChannel()) {
+            ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+            while (channel.read(buffer) > 0) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        byte[] hash = digest.digest();
+        hashed = new HashedFile(key, length, lastModified, hash);
+        hashes.put(key, hashed);
+        return hashed;
+    }
+
+    private File referenceFile(String path) {
+        return new File(directory, hex(sha256().digest(path.getBytes(StandardCharsets.UTF_8))) + REFERENCE_SUFFIX);
+    }
+
+    // null if missing or unreadable
+    private static HashedFile readReference(File reference) {
+        if (!reference.isFile()) {
+            return null;
+        }
+        try {
+            ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(reference.toPath()));
+            if (data.remaining() < 4 + 2 * 8 + HASH_LENGTH + 4 || data.getInt() != REFERENCE_MAGIC) {
+                return null;
+            }
+            long length = data.getLong(), lastModified = data.getLong();
+            byte[] hash = new byte[HASH_LENGTH];
+            data.get(hash);
+            int pathLength = data.getInt();
+            if (pathLength != data.remaining()) {
+                return null;
+            }
+            byte[] path = new byte[pathLength];
+            data.get(path);
+            return new HashedFile(new String(path, StandardCharsets.UTF_8), length, lastModified, hash);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    // a failure only costs hashing the file again later
+    private void writeReference(HashedFile hashed) {
+        File temp = null;
+        try {
+            byte[] path = hashed.path.getBytes(StandardCharsets.UTF_8);
+            ByteBuffer data = ByteBuffer.allocate(4 + 2 * 8 + HASH_LENGTH + 4 + path.length);
+            data.putInt(REFERENCE_MAGIC).putLong(hashed.length).putLong(hashed.lastModified).put(hashed.hash)
+                    .putInt(path.length).put(path);
+            temp = File.createTempFile("reference", ".tmp", directory);
+            Files.write(temp.toPath(), data.array());
+            Files.move(temp.toPath(), referenceFile(hashed.path).toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            temp = null;
+        } catch (IOException e) {
+            Logger.getLogger(SpectrogramCache.class.getName()).log(Level.WARNING,
+                    "Cannot store the content hash of " + hashed.path, e);
+        } finally {
+            if (temp != null) {
+                temp.delete();
+            }
+        }
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    private static class Header {
+        int fftSize, hopSize, window, features, size, frames, dataOffset;
+        long sourceLength, sourceLastModified;
+        byte[] hash = new byte[HASH_LENGTH];
+        String path;
+
+        // null if it is no entry of this version
+        static Header read(ByteBuffer data) {
+            if (data.capacity() < FIXED_HEADER || data.getInt(0) != MAGIC || data.getInt(4) != VERSION) {
+                return null;
+            }
+            Header header = new Header();
+            data.position(8);
+            header.fftSize = data.getInt();
+            header.hopSize = data.getInt();
+            header.window = data.getInt();
+            header.features = data.getInt();
+            header.size = data.getInt();
+            header.frames = data.getInt();
+            header.sourceLength = data.getLong();
+            header.sourceLastModified = data.getLong();
+            data.get(header.hash);
+            int pathLength = data.getInt();
+            if (pathLength < 0 || pathLength > data.remaining()) {
+                return null;
+            }
+            byte[] path = new byte[pathLength];
+            data.get(path);
+            header.path = new String(path, StandardCharsets.UTF_8);
+            header.dataOffset = (FIXED_HEADER + pathLength + 7) & ~7;
+            return header;
+        }
+    }
+}
@@ -0,0 +1,297 @@
+/*
+ * StageMetrics.java
+ *
+ * The wall time, CPU time and allocated bytes of each stage of the analysis
+ * of one file (see Processor), and the realtime factor of the whole. CPU time
+ * and allocation are those of the thread running the stage (ThreadMXBean);
+ * work it hands to other threads (the parallel STFT, tempo hypotheses on an
+ * executor) only shows in the wall time. Every stage is also committed as a
+ * JFR event (StageEvent), so the stages line up with GC and threads in a
+ * flight recording.
+ *
+ * The metrics are written as JSON (toJson), those of a batch summarized by
+ * percentiles (summaryJson).
+ */
+package at.cp.jku.teaching.amprocessing;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+public class StageMetrics {
+
+    public enum Stage {
+        // decoding and STFT (in streaming mode also the onset detection
+        // function and the peak picking, which run in the same pass)
+        STFT("stft"),
+        ODF("odf"),
+        PEAK_PICKING("peakPicking"),
+        IOI_CLUSTERING("ioiClustering"),
+        // the tempo hypotheses (or the autocorrelation)
+        TEMPO("tempo"),
+        BEAT_TRACKING("beatTracking");
+
+        public final String key;
+
+        Stage(String key) {
+            this.key = key;
+        }
+    }
+
+    /** The costs of a stage; -1 where the JVM does not measure them. */
+    public static class Measurement {
+        public final long wallNanos, cpuNanos, allocatedBytes;
+
+        Measurement(long wallNanos, long cpuNanos, long allocatedBytes) {
+            this.wallNanos = wallNanos;
+            this.cpuNanos = cpuNanos;
+            this.allocatedBytes = allocatedBytes;
+        }
+
+        Measurement plus(Measurement other) {
+            return new Measurement(wallNanos + other.wallNanos,
+                    cpuNanos < 0 || other.cpuNanos < 0 ? -1 : cpuNanos + other.cpuNanos,
+                    allocatedBytes < 0 || other.allocatedBytes < 0 ? -1 : allocatedBytes + other.allocatedBytes);
+        }
+    }
+
+    /** A running stage, started by start(Stage). */
+    public class Timer {
+        private final Stage stage;
+        private final StageEvent event = new StageEvent();
+        private final long wallStart, cpuStart, allocatedStart;
+
+        private Timer(Stage stage) {
+            this.stage = stage;
+            event.begin();
+            wallStart = System.nanoTime();
+            cpuStart = cpuTime();
+            allocatedStart = allocatedBytes();
+        }
+
+        /** Ends the stage; a stage measured repeatedly is summed up. */
+        public void stop() {
+            long wall = System.nanoTime() - wallStart;
+            long cpuEnd = cpuTime(), allocatedEnd = allocatedBytes();
+            Measurement measurement = new Measurement(wall, cpuStart < 0 || cpuEnd < 0 ? -1 : cpuEnd - cpuStart,
+                    allocatedStart < 0 || allocatedEnd < 0 ? -1 : allocatedEnd - allocatedStart);
+            measurements.merge(stage, measurement, Measurement::plus);
+
+            event.end();
+            if (event.shouldCommit()) {
+                event.file = file;
+                event.stage = stage.key;
+                event.cpuTime = measurement.cpuNanos;
+                event.allocated = measurement.allocatedBytes;
+                event.commit();
+            }
+        }
+    }
+
+    @Name("at.cp.jku.teaching.amprocessing.Stage")
+    @Label("Analysis Stage")
+    @Category("Audio Analysis")
+    @Description("A stage of the analysis of an audio file")
+    @StackTrace(false)
+    static class StageEvent extends Event {
+        @Label("File")
+        String file;
+        @Label("Stage")
+        String stage;
+        @Label("CPU Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long cpuTime;
+        @Label("Allocated")
+        @DataAmount
+        long allocated;
+    }
+
+    private final String file;
+    // the length of the audio in seconds, NaN if unknown
+    private double audioSeconds = Double.NaN;
+    private final Map<Stage, Measurement> measurements = new EnumMap<>(Stage.class);
+
+    /**
+     * @param file the analyzed file (may be null)
+     */
+    public StageMetrics(String file) {
+        this.file = file;
+    }
+
+    /** Starts measuring the stage on the current thread. */
+    public Timer start(Stage stage) {
+        return new Timer(stage);
+    }
+
+    public void setAudioSeconds(double audioSeconds) {
+        this.audioSeconds = audioSeconds;
+    }
+
+    public String getFile() {
+        return file;
+    }
+
+    /** The measurement of the stage, null if it did not run. */
+    public Measurement get(Stage stage) {
+        return measurements.get(stage);
+    }
+
+    /** The sum of the wall times of the stages. */
+    public long wallNanos() {
+        long wall = 0;
+        for (Measurement measurement : measurements.values()) {
+            wall += measurement.wallNanos;
+        }
+        return wall;
+    }
+
+    /**
+     * The wall time of the stages relative to the length of the audio (below
+     * 1 is faster than realtime), NaN if the length is unknown.
+     */
+    public double realtimeFactor() {
+        return wallNanos() / 1e9 / audioSeconds;
+    }
+
+    public String toJson() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\n");
+        sb.append("  \"file\": ").append(quote(file)).append(",\n");
+        sb.append("  \"audioSeconds\": ").append(number(audioSeconds)).append(",\n");
+        sb.append("  \"wallNanos\": ").append(wallNanos()).append(",\n");
+        sb.append("  \"realtimeFactor\": ").append(number(realtimeFactor())).append(",\n");
+        sb.append("  \"stages\": {");
+        String separator = "\n";
+        for (Map.Entry<Stage, Measurement> entry : measurements.entrySet()) {
+            Measurement measurement = entry.getValue();
+            sb.append(separator).append("    ").append(quote(entry.getKey().key)).append(": {")
+                    .append("\"wallNanos\": ").append(measurement.wallNanos)
+                    .append(", \"cpuNanos\": ").append(measured(measurement.cpuNanos))
+                    .append(", \"allocatedBytes\": ").append(measured(measurement.allocatedBytes)).append("}");
+            separator = ",\n";
+        }
+        sb.append("\n  }\n}\n");
+        return sb.toString();
+    }
+
+    /**
+     * The 50th, 95th and 99th percentile (nearest rank) over the files of the
+     * realtime factor and of the costs of each stage; files without the value
+     * are left out.
+     */
+    public static String summaryJson(List<StageMetrics> metrics) {
+        List<Double> factors = new ArrayList<>();
+        for (StageMetrics m : metrics) {
+            factors.add(m.realtimeFactor());
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\n");
+        sb.append("  \"files\": ").append(metrics.size()).append(",\n");
+        sb.append("  \"realtimeFactor\": ").append(percentiles(factors)).append(",\n");
+        sb.append("  \"stages\": {");
+        String separator = "\n";
+        for (Stage stage : Stage.values()) {
+            List<Double> wall = new ArrayList<>(), cpu = new ArrayList<>(), allocated = new ArrayList<>();
+            for (StageMetrics m : metrics) {
+                Measurement measurement = m.get(stage);
+                if (measurement != null) {
+                    wall.add((double) measurement.wallNanos);
+                    cpu.add(measurement.cpuNanos < 0 ? Double.NaN : measurement.cpuNanos);
+                    allocated.add(measurement.allocatedBytes < 0 ? Double.NaN : measurement.allocatedBytes);
+                }
+            }
+            if (wall.isEmpty()) {
+                continue;
+            }
+            sb.append(separator).append("    ").append(quote(stage.key)).append(": {\n")
+                    .append("      \"files\": ").append(wall.size()).append(",\n")
+                    .append("      \"wallNanos\": ").append(percentiles(wall)).append(",\n")
+                    .append("      \"cpuNanos\": ").append(percentiles(cpu)).append(",\n")
+                    .append("      \"allocatedBytes\": ").append(percentiles(allocated)).append("\n    }");
+            separator = ",\n";
+        }
+        sb.append("\n  }\n}\n");
+        return sb.toString();
+    }
+
+    // {"p50": .., "p95": .., "p99": ..} of the values which are not NaN
+    private static String percentiles(List<Double> values) {
+        double[] sorted = values.stream().mapToDouble(Double::doubleValue).filter(v -> !Double.isNaN(v)).toArray();
+        Arrays.sort(sorted);
+        return "{\"p50\": " + number(percentile(sorted, 50)) + ", \"p95\": " + number(percentile(sorted, 95))
+                + ", \"p99\": " + number(percentile(sorted, 99)) + "}";
+    }
+
+    // the smallest value with at least p percent of the values at or below it
+    static double percentile(double[] sorted, double p) {
+        if (sorted.length == 0) {
+            return Double.NaN;
+        }
+        int rank = (int) Math.ceil(p / 100 * sorted.length);
+        return sorted[Math.max(0, rank - 1)];
+    }
+
+    private static String number(double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            return "null";
+        }
+        return value == Math.rint(value) && Math.abs(value) < 1e15 ? Long.toString((long) value)
+                : Double.toString(value);
+    }
+
+    private static String measured(long value) {
+        return value < 0 ? "null" : Long.toString(value);
+    }
+
+    private static String quote(String value) {
+        if (value == null) {
+            return "null";
+        }
+        StringBuilder sb = new StringBuilder("\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    // the CPU time of the current thread, -1 if not available
+    private static long cpuTime() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!threads.isCurrentThreadCpuTimeSupported() || !threads.isThreadCpuTimeEnabled()) {
+            return -1;
+        }
+        return threads.getCurrentThreadCpuTime();
+    }
+
+    // the bytes allocated by the current thread so far, -1 if not available
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        if (!threads.isThreadAllocatedMemorySupported() || !threads.isThreadAllocatedMemoryEnabled()) {
+            return -1;
+        }
+        return threads.getCurrentThreadAllocatedBytes();
+    }
+}
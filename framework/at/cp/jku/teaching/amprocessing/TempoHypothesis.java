@@ -1,34 +1,54 @@
 package at.cp.jku.teaching.amprocessing;
 
-import java.util.ArrayList;
-import java.util.LinkedList;
+import java.util.function.IntSupplier;
 
 public class TempoHypothesis {
-	private ArrayList<Double> onsets = new ArrayList<Double>();
-	private ArrayList<Double> beats  = new ArrayList<Double>();
+	// steps between two checks whether the hypothesis can still win
+	private static final int PRUNING_INTERVAL = 8;
+	// the longest remaining run of steps looked for by the bound
+	private static final int MAX_BOUND_STEPS = 1024;
+
+	private OnsetIndex onsets;
+	private DoubleArray beats = new DoubleArray();
 	private double lastOnsetTime;
 	private int hitOnsets, missedOnsets, steps, startIndex;
 	private double currentIBIGuess, cumulatedBeatTimeIntervals, initialIBIGuess;
+	private boolean abandoned;
 	
 	
-	public TempoHypothesis(LinkedList<Double> inputList, double initialIBIGuess, int startIndex) {
+	// onsets: the onset times in ms, shared by all hypotheses
+	public TempoHypothesis(OnsetIndex onsets, double initialIBIGuess, int startIndex) {
 		this.startIndex 	 = startIndex;
 		this.initialIBIGuess = initialIBIGuess;
 		this.currentIBIGuess = initialIBIGuess;
-		// Converting onsets to ms and round them to 10ms
-		for (double element : inputList) {
-			onsets.add(element*1000);
-		}
-		lastOnsetTime        = onsets.get(onsets.size()-1);
+		this.onsets          = onsets;
+		lastOnsetTime        = onsets.last();
 	}
 	
 	public void process() {
+		process(null);
+	}
+	
+	// As process(), but the hypothesis is abandoned (and false returned) as
+	// soon as its score can no longer exceed bestScore, if that is positive.
+	// bestScore may grow meanwhile (e.g. the best final score of the other
+	// hypotheses); null: never abandoned.
+	public boolean process(IntSupplier bestScore) {
 		steps 					   = 0;
 		currentIBIGuess 		   = initialIBIGuess;
 		cumulatedBeatTimeIntervals = 0;
+		abandoned 				   = false;
 		beats.clear();
 		
 		for (double currentBeatTime = onsets.get(startIndex); currentBeatTime < (lastOnsetTime-(currentIBIGuess*1.01));) {
+			if (bestScore != null && steps % PRUNING_INTERVAL == 0) {
+				int best = bestScore.getAsInt();
+				int remaining = best > 0 ? getRemainingStepsBound() : -1;
+				if (remaining >= 0 && getScore() + remaining < best) {
+					abandoned = true;
+					return false;
+				}
+			}
 			steps++;
 			double nextBeatTimeGuess = 0;
 			double nextBeatTime      = 0;
@@ -61,7 +81,7 @@ public class TempoHypothesis {
 			}
 			**/
 		}
-		
+		return true;
 	}
 	
 	public double getTempo() {
@@ -84,35 +104,64 @@ public class TempoHypothesis {
 		return hitOnsets;
 	}
 	
-	public ArrayList<Double> getBeats() {
+	public DoubleArray getBeats() {
 		return beats;
 	}
 	
+	// true if the last process(bestScore) gave up; score and beats are incomplete then
+	public boolean isAbandoned() {
+		return abandoned;
+	}
+	
 	//////// private methods ////////////////
 	
 	private double getAverageBeatInterval() {
 		return cumulatedBeatTimeIntervals/steps;
 	}
 	
-	private double getNearestOnset(double guessedBeatTime) {
-		ArrayList<Double> nearOnsets = new ArrayList<Double>();
-		
-		for (double onset : onsets) {
-			if (onset < guessedBeatTime*1.005 && onset > guessedBeatTime*0.995) {
-				nearOnsets.add(onset);
+	// An upper bound of the number of steps left (including the current one),
+	// -1 if none can be given. Each step adds at most 1 to the score.
+	// After k steps the IBI guess is (currentBeatTime - start) / k, so the loop
+	// ends as soon as IBI * (k + 1.01) >= lastOnsetTime - start. A miss keeps
+	// the IBI, a hit is at least 0.995 * guess, so the next IBI is at least
+	// 0.995 * IBI - 0.005 * start / (k + 1). Following this lower bound gives
+	// the latest possible end (none if the windows have grown wider than the IBI).
+	private int getRemainingStepsBound() {
+		double start    = onsets.get(startIndex);
+		// a small margin for the rounding of the sums
+		double distance = (lastOnsetTime - start) * (1 + 1e-9);
+		double ibi 		= currentIBIGuess;
+		for (int j = 0; j <= MAX_BOUND_STEPS; j++) {
+			if (ibi * (steps + j + 1.01) >= distance) {
+				return j;
+			}
+			ibi = 0.995 * ibi - 0.005 * start / (steps + j + 1);
+			if (ibi <= 0) {
+				return -1;
 			}
 		}
-		
+		return -1;
+	}
+	
+	private double getNearestOnset(double guessedBeatTime) {
+		boolean foundNearOnset = false;
 		double[] proximity = {0,1000};
 		
-		for (double element : nearOnsets) {
-			if (Math.abs(element - guessedBeatTime) < proximity[1]) {
-				proximity[0] = element;
-				proximity[1] = Math.abs(element - guessedBeatTime);
+		// the nearest onsets are the last one before and the first one at or after the guess
+		// (checked in this order, so the earlier one wins if both are equally near)
+		int next = onsets.ceilingIndex(guessedBeatTime);
+		for (int i = Math.max(0, next-1); i <= next && i < onsets.size(); i++) {
+			double onset = onsets.get(i);
+			if (onset < guessedBeatTime*1.005 && onset > guessedBeatTime*0.995) {
+				foundNearOnset = true;
+				if (Math.abs(onset - guessedBeatTime) < proximity[1]) {
+					proximity[0] = onset;
+					proximity[1] = Math.abs(onset - guessedBeatTime);
+				}
 			}
 		}
 		
-		if (nearOnsets.isEmpty()) { return -1; }
+		if (!foundNearOnset) { return -1; }
 		return proximity[0];
 	}
 
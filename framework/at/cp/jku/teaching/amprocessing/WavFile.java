@@ -0,0 +1,207 @@
+/*
+ * WavFile.java
+ *
+ * Reader for plain RIFF/WAVE files (16/24/32 bit integer PCM and 32 bit
+ * float, also in WAVE_FORMAT_EXTENSIBLE) which maps the file into memory
+ * and decodes the samples directly from the mapped buffer, without going
+ * through javax.sound.sampled. Other files are left to AudioSystem.
+ * Also writes mono 16 bit files, for the synthetic signals of the tests and
+ * benchmarks.
+ */
+package at.cp.jku.teaching.amprocessing;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+
+public class WavFile {
+
+    private static final int WAVE_FORMAT_PCM = 1;
+    private static final int WAVE_FORMAT_IEEE_FLOAT = 3;
+    private static final int WAVE_FORMAT_EXTENSIBLE = 0xFFFE;
+
+    private final ByteBuffer data;
+    private final int channels;
+    private final float sampleRate;
+    private final int bitsPerSample;
+    private final boolean floatingPoint;
+    private final int blockAlign;
+    // byte position of the next sample frame in data
+    private int position = 0;
+
+    private WavFile(ByteBuffer data, int channels, float sampleRate, int bitsPerSample,
+            boolean floatingPoint, int blockAlign) {
+        this.data = data;
+        this.channels = channels;
+        this.sampleRate = sampleRate;
+        this.bitsPerSample = bitsPerSample;
+        this.floatingPoint = floatingPoint;
+        this.blockAlign = blockAlign;
+    }
+
+    /** Opens a WAV file if it can be decoded by this class.
+     *  @return the reader, or null if the file is no plain PCM/float WAV file
+     *  (or too large to be mapped at once)
+     *  @throws IOException if the file cannot be read
+     */
+    public static WavFile open(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+                FileChannel channel = raf.getChannel()) {
+            long fileSize = channel.size();
+            if (fileSize < 12) {
+                return null;
+            }
+            ByteBuffer header = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+            channel.read(header, 0);
+            if (header.getInt(0) != 0x46464952 || header.getInt(8) != 0x45564157) { // "RIFF", "WAVE"
+                return null;
+            }
+
+            int format = -1, channels = 0, blockAlign = 0, bitsPerSample = 0;
+            float sampleRate = 0;
+            ByteBuffer chunk = ByteBuffer.allocate(40).order(ByteOrder.LITTLE_ENDIAN);
+            long pos = 12;
+            while (pos + 8 <= fileSize) {
+                chunk.clear().limit(8);
+                channel.read(chunk, pos);
+                int id = chunk.getInt(0);
+                long size = chunk.getInt(4) & 0xFFFFFFFFL;
+                pos += 8;
+                if (id == 0x20746d66) { // "fmt "
+                    if (size < 16) {
+                        return null;
+                    }
+                    chunk.clear().limit((int) Math.min(size, 40));
+                    channel.read(chunk, pos);
+                    format = chunk.getShort(0) & 0xFFFF;
+                    channels = chunk.getShort(2) & 0xFFFF;
+                    sampleRate = chunk.getInt(4) & 0xFFFFFFFFL;
+                    blockAlign = chunk.getShort(12) & 0xFFFF;
+                    bitsPerSample = chunk.getShort(14) & 0xFFFF;
+                    if (format == WAVE_FORMAT_EXTENSIBLE) {
+                        if (size < 40) {
+                            return null;
+                        }
+                        // the format code is the start of the sub format GUID
+                        format = chunk.getShort(24) & 0xFFFF;
+                    }
+                } else if (id == 0x61746164) { // "data"
+                    if (format < 0 || !supported(format, bitsPerSample) || channels < 1
+                            || blockAlign != channels * bitsPerSample / 8) {
+                        return null;
+                    }
+                    // the size is not always set correctly in streamed files
+                    size = Math.min(size, fileSize - pos);
+                    size -= size % blockAlign;
+                    if (size > Integer.MAX_VALUE) {
+                        return null;
+                    }
+                    MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, pos, size);
+                    mapped.order(ByteOrder.LITTLE_ENDIAN);
+                    return new WavFile(mapped, channels, sampleRate, bitsPerSample,
+                            format == WAVE_FORMAT_IEEE_FLOAT, blockAlign);
+                }
+                pos += size + (size & 1);
+            }
+            return null;
+        }
+    }
+
+    /** Writes the samples (clipped to -1 ... 1) as a mono 16 bit PCM file. */
+    static void writeMono(File file, double[] samples, int sampleRate) throws IOException {
+        ByteBuffer data = ByteBuffer.allocate(44 + 2 * samples.length).order(ByteOrder.LITTLE_ENDIAN);
+        data.putInt(0x46464952).putInt(36 + 2 * samples.length).putInt(0x45564157); // "RIFF", size, "WAVE"
+        data.putInt(0x20746d66).putInt(16).putShort((short) WAVE_FORMAT_PCM).putShort((short) 1); // "fmt ", mono
+        data.putInt(sampleRate).putInt(sampleRate * 2).putShort((short) 2).putShort((short) 16);
+        data.putInt(0x61746164).putInt(2 * samples.length); // "data"
+        for (double sample : samples) {
+            data.putShort((short) Math.round(Math.max(-1, Math.min(1, sample)) * 32767));
+        }
+        Files.write(file.toPath(), data.array());
+    }
+
+    private static boolean supported(int format, int bitsPerSample) {
+        if (format == WAVE_FORMAT_PCM) {
+            return bitsPerSample == 16 || bitsPerSample == 24 || bitsPerSample == 32;
+        }
+        return format == WAVE_FORMAT_IEEE_FLOAT && bitsPerSample == 32;
+    }
+
+    public int getChannels() {
+        return channels;
+    }
+
+    public float getSampleRate() {
+        return sampleRate;
+    }
+
+    /** The number of sample frames (samples per channel) of the file. */
+    public long getFrameLength() {
+        return data.limit() / blockAlign;
+    }
+
+    /** Reads count sample frames, averages the channels to mono, scales to a
+     *  maximum possible absolute value of 1 and writes them into the circular
+     *  buffer, starting at index offset. 16 bit samples are scaled exactly as
+     *  in AudioFile, so the values are the same as via AudioSystem.
+     *  @return false (and reads nothing) if less than count sample frames are left
+     */
+    public boolean readMono(double[] buffer, int offset, int count) {
+        if (data.limit() - position < count * blockAlign) {
+            return false;
+        }
+        int n = buffer.length;
+        int p = position;
+        int index = offset;
+        for (int i = 0; i < count; i++) {
+            double sample;
+            if (bitsPerSample == 16) {
+                switch (channels) {
+                    case 1:
+                        sample = data.getShort(p) / 32768.0;
+                        break;
+                    case 2:
+                        sample = (data.getShort(p) + data.getShort(p + 2)) / 65536.0;
+                        break;
+                    default:
+                        sample = 0;
+                        for (int c = 0; c < channels; c++) {
+                            sample += data.getShort(p + 2 * c);
+                        }
+                        sample /= 32768.0 * channels;
+                }
+            } else if (floatingPoint) {
+                sample = 0;
+                for (int c = 0; c < channels; c++) {
+                    sample += data.getFloat(p + 4 * c);
+                }
+                sample /= channels;
+            } else if (bitsPerSample == 24) {
+                sample = 0;
+                for (int c = 0; c < channels; c++) {
+                    int q = p + 3 * c;
+                    sample += (data.get(q) & 0xff) | ((data.get(q + 1) & 0xff) << 8) | (data.get(q + 2) << 16);
+                }
+                sample /= 8388608.0 * channels;
+            } else {
+                sample = 0;
+                for (int c = 0; c < channels; c++) {
+                    sample += data.getInt(p + 4 * c);
+                }
+                sample /= 2147483648.0 * channels;
+            }
+            buffer[index] = sample;
+            if (++index == n) {
+                index = 0;
+            }
+            p += blockAlign;
+        }
+        position = p;
+        return true;
+    }
+}
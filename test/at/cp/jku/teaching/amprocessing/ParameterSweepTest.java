@@ -0,0 +1,116 @@
+/*
+ * ParameterSweepTest.java
+ *
+ * Checks of ParameterSweep with grid points which give too few onsets for a
+ * tempo and with the tempo options of the settings, on a synthetic WAV file
+ * (noise bursts at 120 bpm). There is no test
+ * framework in the tree: run the main method, which throws an AssertionError
+ * on the first failure.
+ */
+package at.cp.jku.teaching.amprocessing;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class ParameterSweepTest {
+
+    private static final int SAMPLE_RATE = 44100;
+    private static final int SECONDS = 10;
+    private static final double BEAT = 0.5;
+
+    public static void main(String[] args) throws Exception {
+        rhythmWithoutTempoHypotheses();
+        sweepWithSparseOnsets();
+        System.out.println("ParameterSweepTest passed");
+    }
+
+    // no IOI within the tempo range: tempo 0 and no beats instead of an exception
+    static void rhythmWithoutTempoHypotheses() {
+        Processor processor = new Processor(new double[] { 0.5, 3.0, 6.0 }, new Processor.Settings());
+        processor.analyzeRhythm();
+        check(processor.getTempo() == 0, "tempo " + processor.getTempo() + " without hypotheses");
+        check(processor.getBeatTimes().length == 0, "beats without hypotheses");
+    }
+
+    // minimum distances of 3 s and 20 s between onsets leave IOIs above the
+    // tempo range or a single onset; those grid points are scored 0
+    static void sweepWithSparseOnsets() throws IOException {
+        File directory = Files.createTempDirectory("sweep").toFile();
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            File wav = synthesize(new File(directory, "bursts.wav"));
+            String base = new File(directory, "bursts").getPath();
+            try (PrintWriter onsets = new PrintWriter(base + ".onsets");
+                    PrintWriter beats = new PrintWriter(base + ".beats");
+                    PrintWriter tempo = new PrintWriter(base + ".bpms")) {
+                for (double time = 0; time < SECONDS; time += BEAT) {
+                    onsets.println(time);
+                    beats.println(time);
+                }
+                tempo.println(60 / BEAT);
+            }
+            List<ParameterSweep.Track> tracks = Collections.singletonList(
+                    new ParameterSweep.Track(wav.getPath(), base + ".onsets", base + ".bpms", base + ".beats"));
+            ParameterSweep.Grid grid = ParameterSweep.Grid.parse("minDelay=5,300,2000");
+            ParameterSweep sweep = new ParameterSweep(tracks, OnsetDetectionFunctions.DEFAULT, grid, 0.05,
+                    new Processor.Settings());
+
+            List<ParameterSweep.Result> results = sweep.run(executor);
+            check(results.size() == 3, results.size() + " results");
+            ParameterSweep.Result best = results.get(0);
+            check(best.configuration.minDelay == 5, "best minDelay " + best.configuration.minDelay);
+            check(best.onsetFMeasure > 0.9, "onset F-measure " + best.onsetFMeasure);
+            check(best.tempoAccuracy == 1, "tempo accuracy " + best.tempoAccuracy);
+            for (ParameterSweep.Result result : results.subList(1, results.size())) {
+                check(result.configuration.minDelay != 5, "order of the results");
+                check(result.tempoAccuracy == 0, "tempo accuracy " + result.tempoAccuracy + " of " + result.configuration);
+                check(result.beatFMeasure == 0, "beat F-measure " + result.beatFMeasure + " of " + result.configuration);
+            }
+
+            // the autocorrelation of the settings finds the tempo in the onset
+            // detection function, however few onsets are picked
+            Processor.Settings settings = new Processor.Settings();
+            settings.tempoEstimator = Processor.TEMPO_AUTOCORRELATION;
+            sweep = new ParameterSweep(tracks, OnsetDetectionFunctions.DEFAULT, grid, 0.05, settings);
+            for (ParameterSweep.Result result : sweep.run(executor)) {
+                check(result.tempoAccuracy == 1, "autocorrelation tempo accuracy " + result.tempoAccuracy + " of "
+                        + result.configuration);
+            }
+        } finally {
+            executor.shutdownNow();
+            File[] files = directory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            directory.delete();
+        }
+    }
+
+    // a mono 16 bit WAV file of decaying noise bursts every BEAT seconds
+    private static File synthesize(File file) throws IOException {
+        double[] samples = new double[SECONDS * SAMPLE_RATE];
+        Random random = new Random(1);
+        int beat = (int) (BEAT * SAMPLE_RATE);
+        for (int i = 0; i < samples.length; i++) {
+            double envelope = Math.exp(-(i % beat) / (0.03 * SAMPLE_RATE));
+            samples[i] = envelope * 0.8 * (random.nextDouble() * 2 - 1) + 0.001 * (random.nextDouble() * 2 - 1);
+        }
+        WavFile.writeMono(file, samples, SAMPLE_RATE);
+        return file;
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}